@@ -9,16 +9,41 @@ public class AudioFileProcessor {
     private final Harvester harvester;
 
     public AudioFileProcessor() {
-        this.harvester = new Harvester();
+        this(new Harvester());
+    }
+
+    public AudioFileProcessor(Harvester harvester) {
+        this.harvester = harvester;
     }
 
     /**
      * Reads an audio file and processes it to generate fingerprints.
      * If the file is a FLAC file, it is first converted to PCM format.
      * @param filePath Path to the audio file
-     * @return List of fingerprint hashes
+     * @return Fingerprint hashes with their time index
      */
-    public List<Long> processFile(String filePath) throws Exception {
+    public FingerprintList processFile(String filePath) throws Exception {
+        FingerprintList fingerprints = new FingerprintList();
+        processFile(filePath, fingerprints);
+        return fingerprints;
+    }
+
+    /**
+     * Streams an audio file through the Harvester, one chunk at a time,
+     * without loading the decoded audio into memory.
+     * If the file is a FLAC file, it is first converted to PCM format.
+     * @param filePath Path to the audio file
+     * @param sink Receives the fingerprint hashes in time order
+     * @return Number of frames analysed
+     */
+    public int processFile(String filePath, Harvester.HashSink sink) throws Exception {
+        try (AudioInputStream convertedStream = openConverted(filePath)) {
+            return harvester.processStream(convertedStream, sink);
+        }
+    }
+
+    // Open an audio file as the 8-bit mono stream expected by the Harvester
+    private AudioInputStream openConverted(String filePath) throws Exception {
         File file = new File(filePath);
         if (!file.exists()) {
             throw new FileNotFoundException("Audio file not found: " + filePath);
@@ -33,24 +58,16 @@ public class AudioFileProcessor {
             audioInputStream = AudioSystem.getAudioInputStream(file);
         }
 
-        AudioFormat format = audioInputStream.getFormat();
-
         // Convert to the format expected by the Harvester
         AudioFormat targetFormat = new AudioFormat(
-                44100, // Sample rate
+                FingerprintConfig.CAPTURE_RATE, // Sample rate (the Harvester downsamples if configured)
                 8,     // Sample size in bits
                 1,     // Channels (mono)
                 true,  // Signed
                 true   // Big endian
         );
 
-        AudioInputStream convertedStream = AudioSystem.getAudioInputStream(targetFormat, audioInputStream);
-
-        // Read all bytes from the audio file
-        byte[] audioData = readAllBytes(convertedStream);
-
-        // Process the audio data to generate fingerprints
-        return harvester.processAudio(audioData);
+        return AudioSystem.getAudioInputStream(targetFormat, audioInputStream);
     }
 
     /**
@@ -74,7 +91,7 @@ public class AudioFileProcessor {
                 "ffmpeg",
                 "-i", flacFile.getAbsolutePath(),
                 "-f", "wav",
-                "-ar", "44100",
+                "-ar", Integer.toString(FingerprintConfig.CAPTURE_RATE),
                 "-ac", "1",
                 "-sample_fmt", "s8",
                 "pipe:1"
@@ -105,15 +122,4 @@ public class AudioFileProcessor {
 
         return audioInputStream;
     }
-
-
-    private byte[] readAllBytes(AudioInputStream audioInputStream) throws IOException {
-        ByteArrayOutputStream out = new ByteArrayOutputStream();
-        byte[] buffer = new byte[4096];
-        int bytesRead;
-        while ((bytesRead = audioInputStream.read(buffer)) != -1) {
-            out.write(buffer, 0, bytesRead);
-        }
-        return out.toByteArray();
-    }
 }
@@ -1,5 +1,8 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
 
 public class AudioFingerprinter {
     private final DatabaseManager dbManager;
@@ -9,9 +12,13 @@ public class AudioFingerprinter {
 
     public AudioFingerprinter() {
         this.dbManager = new DatabaseManager();
-        this.fileProcessor = new AudioFileProcessor();
-        this.harvester = new Harvester();
-        this.matcher = new EnhancedMatcher(dbManager);
+        // Ingest and queries must share the database's STFT parameters
+        FingerprintConfig config = dbManager.loadFingerprintConfig(FingerprintConfig.fromSystemProperties());
+        // -Dsaudentify.parallel=true spreads each track's frames across all cores
+        this.harvester = new Harvester(config,
+                Boolean.getBoolean("saudentify.parallel") ? ForkJoinPool.commonPool() : null);
+        this.fileProcessor = new AudioFileProcessor(harvester);
+        this.matcher = new EnhancedMatcher(dbManager, MatcherConfig.fromSystemProperties());
     }
 
     /**
@@ -23,15 +30,23 @@ public class AudioFingerprinter {
     public boolean addSong(String filepath, String songName) {
         try {
             System.out.println("Processing file: " + filepath);
-            List<Long> fingerprints = fileProcessor.processFile(filepath);
+            FingerprintList fingerprints = new FingerprintList();
+            int frames = fileProcessor.processFile(filepath, fingerprints);
             System.out.println("Generated " + fingerprints.size() + " fingerprints");
+            FingerprintConfig config = harvester.getConfig();
+            long durationMs = (long) frames * config.getHopSize() * 1000 / FingerprintConfig.CAPTURE_RATE;
 
             // Add to database
-            int songId = dbManager.addSong(songName, filepath);
+            int songId = dbManager.addSong(songName, filepath, durationMs);
             if (songId > 0) {
-                dbManager.addFingerprints(songId, fingerprints);
-                // Also add to in-memory store for immediate matching
-                matcher.addToMemory(songId, songName, fingerprints);
+                // Add to in-memory store for immediate matching; stop-listed hashes are left out
+                FingerprintList indexed = matcher.addToMemory(
+                        new SongInfo(songId, songName, filepath, durationMs), fingerprints);
+                if (indexed.size() < fingerprints.size()) {
+                    System.out.println("Dropped " + (fingerprints.size() - indexed.size())
+                            + " fingerprints with stop-listed hashes");
+                }
+                dbManager.addFingerprints(songId, indexed);
                 System.out.println("Successfully added song: " + songName);
                 return true;
             }
@@ -63,12 +78,14 @@ public class AudioFingerprinter {
             System.out.println("Recording complete, processing...");
 
             byte[] audioData = recorder.getAudioData();
-            List<Long> fingerprints = harvester.processAudio(audioData);
+            FingerprintList fingerprints = harvester.processAudio(audioData);
 
             System.out.println("Generated " + fingerprints.size() + " fingerprints from recording");
             System.out.println("Matching against database...");
 
-            return matcher.match(fingerprints);
+            EnhancedMatcher.MatchResult result = matcher.match(fingerprints);
+            printMatcherStats();
+            return result;
         } catch (Exception e) {
             System.err.println("Error during recording/matching: " + e.getMessage());
             e.printStackTrace();
@@ -83,13 +100,34 @@ public class AudioFingerprinter {
      */
     public EnhancedMatcher.MatchResult identifyFile(String filepath) {
         try {
+            // The same file again is answered from the cache without decoding it. The result
+            // is cached under the file's key only, so the matcher is asked not to cache it too.
+            QueryCache cache = matcher.getQueryCache();
+            ByteBuffer audioKey = null;
+            long generation = 0;
+            if (cache != null) {
+                audioKey = QueryCache.key(Paths.get(filepath));
+                EnhancedMatcher.MatchResult cached = cache.get(audioKey);
+                if (cached != null) {
+                    System.out.println("Identified from cache: " + filepath);
+                    printMatcherStats();
+                    return cached;
+                }
+                generation = cache.generation();
+            }
+
             System.out.println("Processing file for identification: " + filepath);
-            List<Long> fingerprints = fileProcessor.processFile(filepath);
+            FingerprintList fingerprints = fileProcessor.processFile(filepath);
 
             System.out.println("Generated " + fingerprints.size() + " fingerprints");
             System.out.println("Matching against database...");
 
-            return matcher.match(fingerprints);
+            EnhancedMatcher.MatchResult result = matcher.search(fingerprints);
+            if (cache != null) {
+                cache.put(audioKey, result, generation);
+            }
+            printMatcherStats();
+            return result;
         } catch (Exception e) {
             System.err.println("Error identifying file: " + e.getMessage());
             e.printStackTrace();
@@ -97,6 +135,63 @@ public class AudioFingerprinter {
         }
     }
 
+    /**
+     * Identifies many audio files at once, e.g. for bulk monitoring. The files are
+     * fingerprinted one by one and then matched as a batch, which looks up hashes
+     * shared between files only once. Results equal those of identifyFile.
+     * @param filepaths Paths to the audio files
+     * @return One match result per file, in order; files that cannot be read do not match
+     */
+    public List<EnhancedMatcher.MatchResult> identifyFiles(List<String> filepaths) {
+        EnhancedMatcher.MatchResult[] results = new EnhancedMatcher.MatchResult[filepaths.size()];
+        QueryCache cache = matcher.getQueryCache();
+        long generation = cache == null ? 0 : cache.generation();
+        ByteBuffer[] audioKeys = new ByteBuffer[filepaths.size()];
+        List<FingerprintList> queries = new ArrayList<>();
+        List<Integer> queried = new ArrayList<>();
+        for (int i = 0; i < filepaths.size(); i++) {
+            String filepath = filepaths.get(i);
+            try {
+                if (cache != null) {
+                    audioKeys[i] = QueryCache.key(Paths.get(filepath));
+                    results[i] = cache.get(audioKeys[i]);
+                    if (results[i] != null) {
+                        continue;
+                    }
+                }
+                queries.add(fileProcessor.processFile(filepath));
+                queried.add(i);
+            } catch (Exception e) {
+                System.err.println("Error identifying file " + filepath + ": " + e.getMessage());
+                e.printStackTrace();
+                results[i] = new EnhancedMatcher.MatchResult(false, "", 0, 0);
+            }
+        }
+
+        System.out.println("Matching " + queries.size() + " files against database...");
+        List<EnhancedMatcher.MatchResult> matched = matcher.searchAll(queries);
+        for (int j = 0; j < queried.size(); j++) {
+            int i = queried.get(j);
+            results[i] = matched.get(j);
+            if (cache != null) {
+                cache.put(audioKeys[i], results[i], generation);
+            }
+        }
+        printMatcherStats();
+        return Arrays.asList(results);
+    }
+
+    // Reports the query cache and prefilter counters, for whichever are enabled
+    private void printMatcherStats() {
+        if (matcher.getQueryCache() != null) {
+            System.out.println(matcher.getQueryCache());
+        }
+        String prefilter = matcher.getPrefilterStats();
+        if (prefilter != null) {
+            System.out.println(prefilter);
+        }
+    }
+
     /**
      * Lists all songs in the database
      * @return List of song names
@@ -109,6 +204,7 @@ public class AudioFingerprinter {
      * Closes resources
      */
     public void close() {
+        matcher.close();
         dbManager.close();
     }
 }
\ No newline at end of file
@@ -20,7 +20,7 @@ public class AudioRecorder implements Runnable {
     }
 
     private AudioFormat getFormat() {
-        float sampleRate = 44100;
+        float sampleRate = FingerprintConfig.CAPTURE_RATE; // Downsampled later if configured
         int sampleSizeInBits = 8; // Using 8-bit samples (as in the guide)
         int channels = 1;         // Mono
         boolean signed = true;
@@ -0,0 +1,83 @@
+// Blocked Bloom filter over fingerprint hashes. All bits of a hash fall into one
+// 512-bit block (a single cache line), so a lookup costs one memory access
+// instead of k, at the price of a slightly higher false-positive rate than a
+// classic Bloom filter of the same size. Immutable once built, so it can be
+// read by any number of threads.
+public class BloomFilter {
+    private static final int BLOCK_LONGS = 8;
+    private static final int BITS_PER_PROBE = 9; // log2 of 512 bits per block
+
+    private final long[] bits;
+    private final int blocks;
+    private final int probes;
+    private final long keys;
+
+    private BloomFilter(long keys, int bitsPerKey) {
+        if (bitsPerKey < 1) {
+            throw new IllegalArgumentException("Bits per key must be at least 1: " + bitsPerKey);
+        }
+        long totalBits = Math.max(512, keys * bitsPerKey);
+        long blockCount = (totalBits + 511) / 512;
+        if (blockCount * BLOCK_LONGS > Integer.MAX_VALUE - 8) {
+            throw new IllegalStateException("Too many keys for a Bloom filter: " + keys);
+        }
+        this.blocks = (int) blockCount;
+        this.bits = new long[blocks * BLOCK_LONGS];
+        // k = ln 2 * bits per key minimises the false-positive rate; 7 probes use 63 bits of the hash
+        this.probes = (int) Math.max(1, Math.min(7, Math.round(bitsPerKey * Math.log(2))));
+        this.keys = keys;
+    }
+
+    // Filter holding every key of segment
+    public static BloomFilter of(IndexSegment segment, int bitsPerKey) {
+        BloomFilter filter = new BloomFilter(segment.size(), bitsPerKey);
+        for (int i = 0; i < segment.size(); i++) {
+            filter.add(segment.key(i));
+        }
+        return filter;
+    }
+
+    private void add(long hash) {
+        long h = HashIndex.mix(hash);
+        int base = block(h) * BLOCK_LONGS;
+        long positions = HashIndex.mix(h ^ 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < probes; i++) {
+            int bit = (int) (positions >>> (i * BITS_PER_PROBE)) & 511;
+            bits[base + (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    // False if hash is certainly absent; true if it is probably present
+    public boolean mightContain(long hash) {
+        long h = HashIndex.mix(hash);
+        int base = block(h) * BLOCK_LONGS;
+        long positions = HashIndex.mix(h ^ 0x9e3779b97f4a7c15L);
+        for (int i = 0; i < probes; i++) {
+            int bit = (int) (positions >>> (i * BITS_PER_PROBE)) & 511;
+            if ((bits[base + (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Maps the high half of h onto [0, blocks) without a division
+    private int block(long h) {
+        return (int) (((h >>> 32) * blocks) >>> 32);
+    }
+
+    public long keyCount() {
+        return keys;
+    }
+
+    // Size of the filter in bytes
+    public long byteSize() {
+        return (long) bits.length * Long.BYTES;
+    }
+
+    // False-positive rate of a classic Bloom filter of this size; a lower bound for the blocked one
+    public double expectedFalsePositiveRate() {
+        double m = bits.length * 64.0;
+        return Math.pow(1 - Math.exp(-probes * keys / m), probes);
+    }
+}
@@ -8,6 +8,14 @@ public class Complex {
         this.im = im;
     }
 
+    public double re() {
+        return re;
+    }
+
+    public double im() {
+        return im;
+    }
+
     public double abs() {
         return Math.hypot(re, im);
     }
@@ -0,0 +1,193 @@
+import java.util.Arrays;
+
+// Heap index segment with compressed posting lists. Each list is sorted by
+// (songId, time) and stored in data[] as varints:
+//   count, then per posting: songId delta, and time (absolute for a new song,
+//   delta from the previous time of the same song otherwise)
+// Songs repeat inside a list and times are close together, so most postings
+// take 2-3 bytes instead of 8. Lists are decoded straight into the visitor.
+public class CompressedSegment implements IndexSegment {
+    public static final IndexSegment.Factory FACTORY = CompressedSegment::merge;
+
+    private final long[] keys;
+    // Byte position of the list of keys[i] in data
+    private final int[] offsets;
+    private final byte[] data;
+    private final long postingCount;
+    private final CsrSegment.KeyReader keyReader;
+
+    private CompressedSegment(long[] keys, int[] offsets, byte[] data, long postingCount) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.data = data;
+        this.postingCount = postingCount;
+        this.keyReader = i -> keys[i];
+    }
+
+    /**
+     * Builds a new compressed segment holding the postings of base and delta.
+     */
+    public static IndexSegment merge(IndexSegment base, HashIndex delta) {
+        return IndexSegment.merge(base, delta, new IndexSegment.Writer() {
+            private long[] keys;
+            private int[] offsets;
+            private long postingCount;
+            private byte[] data;
+            private int length;
+            // Postings of the current key, sorted and encoded when the next key starts
+            private long[] list = new long[16];
+            private int listSize;
+            private int current = -1;
+
+            @Override
+            public void allocate(int keyCount, long postingCount) {
+                this.keys = new long[keyCount];
+                this.offsets = new int[keyCount + 1];
+                this.postingCount = postingCount;
+                // Most postings take about 3 bytes
+                this.data = new byte[(int) Math.min(Integer.MAX_VALUE - 8, Math.max(16, postingCount * 3))];
+            }
+
+            @Override
+            public void key(int i, long hash, long start) {
+                if (current >= 0) {
+                    encode();
+                }
+                if (i < keys.length) {
+                    keys[i] = hash;
+                }
+                offsets[i] = length;
+                current = i;
+            }
+
+            @Override
+            public void posting(long p, long posting) {
+                if (listSize == list.length) {
+                    list = Arrays.copyOf(list, listSize * 2);
+                }
+                list[listSize++] = posting;
+            }
+
+            @Override
+            public IndexSegment finish() {
+                return new CompressedSegment(keys, offsets, Arrays.copyOf(data, length), postingCount);
+            }
+
+            private void encode() {
+                // Packed postings sort by songId, then time (both non-negative)
+                Arrays.sort(list, 0, listSize);
+                ensureCapacity(5 + listSize * 10L);
+                length = writeVarint(data, length, listSize);
+                int lastSong = 0;
+                int lastTime = 0;
+                for (int p = 0; p < listSize; p++) {
+                    int songId = HashIndex.songId(list[p]);
+                    int time = HashIndex.time(list[p]);
+                    length = writeVarint(data, length, songId - lastSong);
+                    length = writeVarint(data, length, songId == lastSong ? time - lastTime : time);
+                    lastSong = songId;
+                    lastTime = time;
+                }
+                listSize = 0;
+            }
+
+            private void ensureCapacity(long needed) {
+                if (length + needed <= data.length) return;
+                long capacity = Math.max(length + needed, data.length + (data.length >> 1));
+                if (capacity > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many postings for a compressed heap segment: " + postingCount);
+                }
+                data = Arrays.copyOf(data, (int) capacity);
+            }
+        });
+    }
+
+    // Writes value as an unsigned LEB128 varint and returns the new position
+    private static int writeVarint(byte[] out, int pos, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[pos++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[pos++] = (byte) value;
+        return pos;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public long postingCount() {
+        return postingCount;
+    }
+
+    @Override
+    public long key(int i) {
+        return keys[i];
+    }
+
+    @Override
+    public int postingCountAt(int i) {
+        // The count is the first varint of the list
+        int pos = offsets[i];
+        int value = 0;
+        int shift = 0;
+        byte b;
+        do {
+            b = data[pos++];
+            value |= (b & 0x7F) << shift;
+            shift += 7;
+        } while (b < 0);
+        return value;
+    }
+
+    @Override
+    public void forEachAt(int i, PostingVisitor visitor) {
+        byte[] data = this.data;
+        int pos = offsets[i];
+        int end = offsets[i + 1];
+        // Skip the count; the end offset bounds the list
+        while (data[pos++] < 0) {
+        }
+        int songId = 0;
+        int time = 0;
+        while (pos < end) {
+            // Decode the song delta; single-byte values are by far the most common
+            int songDelta = data[pos++];
+            if (songDelta < 0) {
+                songDelta &= 0x7F;
+                int shift = 7;
+                byte b;
+                do {
+                    b = data[pos++];
+                    songDelta |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+            }
+            int timeValue = data[pos++];
+            if (timeValue < 0) {
+                timeValue &= 0x7F;
+                int shift = 7;
+                byte b;
+                do {
+                    b = data[pos++];
+                    timeValue |= (b & 0x7F) << shift;
+                    shift += 7;
+                } while (b < 0);
+            }
+            if (songDelta == 0) {
+                time += timeValue;
+            } else {
+                songId += songDelta;
+                time = timeValue;
+            }
+            visitor.visit(songId, time);
+        }
+    }
+
+    @Override
+    public int find(long hash) {
+        return CsrSegment.interpolationSearch(keys.length, hash, keyReader);
+    }
+}
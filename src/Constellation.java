@@ -0,0 +1,176 @@
+// Peak-pair ("constellation") hashing. Spectral peaks are picked over time and
+// frequency from a stream of band-limited power spectra, and each peak (the
+// anchor) is paired with the next few peaks in a target zone ahead of it.
+// Every pair becomes a 32-bit hash of (anchor bin, target bin, frame gap),
+// emitted with the anchor's frame index. Frames arrive one at a time, so only
+// a few frames of spectra are buffered whatever the track length.
+class Constellation {
+    // A peak must be the largest value within this many frames on either side...
+    private static final int PEAK_TIME = 3;
+    // ...and within this many bins on either side
+    private static final int PEAK_FREQ = 10;
+    // Strongest peaks kept per frame
+    private static final int MAX_PEAKS = 5;
+    // Target zone: 1..TARGET_TIME frames after the anchor, within TARGET_FREQ bins of it
+    private static final int TARGET_TIME = 32;
+    private static final int TARGET_FREQ = 64;
+    // Pairs emitted per anchor
+    private static final int FAN_OUT = 5;
+
+    // Hash layout: anchor bin (13 bits) | target bin (13 bits) | frame gap (6 bits)
+    private static final int BIN_BITS = 13;
+    private static final int GAP_BITS = 6;
+    static final int MAX_BINS = 1 << BIN_BITS;
+
+    private static final int POWER_FRAMES = 2 * PEAK_TIME + 1;
+    private static final int PEAK_FRAMES = TARGET_TIME + 1;
+
+    private final int bins;
+    // Recent spectra and their per-frame sliding maximum over +-PEAK_FREQ bins
+    private final double[][] powers;
+    private final double[][] localMax;
+    // Peaks of recent frames, strongest first
+    private final int[][] peakBins;
+    private final double[][] peakPowers;
+    private final int[] peakCounts;
+
+    // Frames received, frames whose peaks are known, and frames whose pairs were emitted
+    private int received;
+    private int decided;
+    private int emitted;
+
+    Constellation(int bins) {
+        if (bins < 1 || bins > MAX_BINS) {
+            throw new IllegalArgumentException("Constellation hashing supports 1 to " + MAX_BINS + " bins: " + bins);
+        }
+        this.bins = bins;
+        this.powers = new double[POWER_FRAMES][bins];
+        this.localMax = new double[POWER_FRAMES][bins];
+        this.peakBins = new int[PEAK_FRAMES][MAX_PEAKS];
+        this.peakPowers = new double[PEAK_FRAMES][MAX_PEAKS];
+        this.peakCounts = new int[PEAK_FRAMES];
+    }
+
+    // Forget all buffered frames, ready for a new stream
+    void reset() {
+        received = 0;
+        decided = 0;
+        emitted = 0;
+    }
+
+    /**
+     * Adds the next frame's power spectrum (bins values starting at offset) and
+     * emits every hash whose anchor and target zone are now complete.
+     */
+    void push(double[] frame, int offset, Harvester.HashSink sink) {
+        int slot = received % POWER_FRAMES;
+        double[] power = powers[slot];
+        System.arraycopy(frame, offset, power, 0, bins);
+        slidingMax(power, localMax[slot]);
+        received++;
+
+        while (decided + PEAK_TIME < received) {
+            decide(decided++);
+        }
+        while (emitted + TARGET_TIME < decided) {
+            emit(emitted++, sink);
+        }
+    }
+
+    // Finish the stream: decide the remaining frames and emit their pairs
+    void flush(Harvester.HashSink sink) {
+        while (decided < received) {
+            decide(decided++);
+            while (emitted + TARGET_TIME < decided) {
+                emit(emitted++, sink);
+            }
+        }
+        while (emitted < decided) {
+            emit(emitted++, sink);
+        }
+    }
+
+    // Per-bin maximum over +-PEAK_FREQ bins of the same frame
+    private void slidingMax(double[] power, double[] out) {
+        for (int f = 0; f < bins; f++) {
+            double max = power[f];
+            int hi = Math.min(bins - 1, f + PEAK_FREQ);
+            for (int g = Math.max(0, f - PEAK_FREQ); g <= hi; g++) {
+                max = Math.max(max, power[g]);
+            }
+            out[f] = max;
+        }
+    }
+
+    // Find the peaks of frame t; frames t-PEAK_TIME..t+PEAK_TIME are buffered if they exist
+    private void decide(int t) {
+        double[] power = powers[t % POWER_FRAMES];
+        double[] max = localMax[t % POWER_FRAMES];
+        int peakSlot = t % PEAK_FRAMES;
+        int[] slotBins = peakBins[peakSlot];
+        double[] slotPowers = peakPowers[peakSlot];
+        int count = 0;
+
+        int first = Math.max(0, t - PEAK_TIME);
+        int last = Math.min(received - 1, t + PEAK_TIME);
+        for (int f = 0; f < bins; f++) {
+            double p = power[f];
+            if (p <= 0 || p < max[f]) {
+                continue;
+            }
+            boolean peak = true;
+            for (int u = first; u <= last && peak; u++) {
+                if (u != t && localMax[u % POWER_FRAMES][f] >= p) {
+                    peak = false;
+                }
+            }
+            if (!peak) {
+                continue;
+            }
+            // Insert into the strongest-first list, dropping the weakest when full
+            if (count < MAX_PEAKS) {
+                count++;
+            } else if (p <= slotPowers[MAX_PEAKS - 1]) {
+                continue;
+            }
+            int i = count - 1;
+            while (i > 0 && slotPowers[i - 1] < p) {
+                slotPowers[i] = slotPowers[i - 1];
+                slotBins[i] = slotBins[i - 1];
+                i--;
+            }
+            slotPowers[i] = p;
+            slotBins[i] = f;
+        }
+        peakCounts[peakSlot] = count;
+    }
+
+    // Pair every peak of frame t with up to FAN_OUT peaks in its target zone
+    private void emit(int t, Harvester.HashSink sink) {
+        int anchorSlot = t % PEAK_FRAMES;
+        int[] anchors = peakBins[anchorSlot];
+        int lastTarget = Math.min(decided - 1, t + TARGET_TIME);
+        for (int a = 0; a < peakCounts[anchorSlot]; a++) {
+            int f1 = anchors[a];
+            int pairs = 0;
+            for (int u = t + 1; u <= lastTarget && pairs < FAN_OUT; u++) {
+                int targetSlot = u % PEAK_FRAMES;
+                int[] targets = peakBins[targetSlot];
+                for (int b = 0; b < peakCounts[targetSlot] && pairs < FAN_OUT; b++) {
+                    int f2 = targets[b];
+                    if (Math.abs(f2 - f1) <= TARGET_FREQ) {
+                        sink.accept(t, hash(f1, f2, u - t));
+                        pairs++;
+                    }
+                }
+            }
+        }
+    }
+
+    // Pack a pair into an unsigned 32-bit value
+    static long hash(int anchorBin, int targetBin, int gap) {
+        return ((long) anchorBin << (BIN_BITS + GAP_BITS))
+                | ((long) targetBin << GAP_BITS)
+                | gap;
+    }
+}
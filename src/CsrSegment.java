@@ -0,0 +1,140 @@
+// Immutable, sorted-by-hash index segment in compressed sparse row form, on the heap:
+// keys[] holds the distinct hashes in ascending order, and the postings of
+// keys[i] are postings[offsets[i]] to postings[offsets[i + 1] - 1], packed
+// as in HashIndex. Lookups are a search over keys[] followed by a linear scan.
+public class CsrSegment implements IndexSegment {
+    public static final CsrSegment EMPTY = new CsrSegment(new long[0], new int[] {0}, new long[0]);
+
+    // Interpolation steps tried before falling back to binary search
+    private static final int INTERPOLATION_STEPS = 3;
+
+    private final long[] keys;
+    private final int[] offsets;
+    private final long[] postings;
+    private final KeyReader keyReader;
+
+    private CsrSegment(long[] keys, int[] offsets, long[] postings) {
+        this.keys = keys;
+        this.offsets = offsets;
+        this.postings = postings;
+        this.keyReader = i -> keys[i];
+    }
+
+    /**
+     * Builds a new heap segment holding the postings of base followed by those of delta.
+     */
+    public static CsrSegment merge(IndexSegment base, HashIndex delta) {
+        return (CsrSegment) IndexSegment.merge(base, delta, new IndexSegment.Writer() {
+            private long[] keys;
+            private int[] offsets;
+            private long[] postings;
+
+            @Override
+            public void allocate(int keyCount, long postingCount) {
+                if (postingCount > Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many postings for a heap segment: " + postingCount);
+                }
+                keys = new long[keyCount];
+                offsets = new int[keyCount + 1];
+                postings = new long[(int) postingCount];
+            }
+
+            @Override
+            public void key(int i, long hash, long start) {
+                if (i < keys.length) {
+                    keys[i] = hash;
+                }
+                offsets[i] = (int) start;
+            }
+
+            @Override
+            public void posting(long p, long posting) {
+                postings[(int) p] = posting;
+            }
+
+            @Override
+            public IndexSegment finish() {
+                return new CsrSegment(keys, offsets, postings);
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public long postingCount() {
+        return postings.length;
+    }
+
+    @Override
+    public long key(int i) {
+        return keys[i];
+    }
+
+    @Override
+    public int postingCountAt(int i) {
+        return offsets[i + 1] - offsets[i];
+    }
+
+    @Override
+    public void forEachAt(int i, PostingVisitor visitor) {
+        for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+            long posting = postings[p];
+            visitor.visit(HashIndex.songId(posting), HashIndex.time(posting));
+        }
+    }
+
+    // Fingerprint hashes are spread fairly evenly, so a few interpolation steps
+    // usually land next to the key; binary search finishes the job if they do not.
+    @Override
+    public int find(long hash) {
+        return interpolationSearch(keys.length, hash, keyReader);
+    }
+
+    // Reads the i-th key of a sorted key array wherever it is stored
+    interface KeyReader {
+        long key(int i);
+    }
+
+    // Interpolation search over count sorted keys, falling back to binary search
+    static int interpolationSearch(int count, long hash, KeyReader keys) {
+        int lo = 0;
+        int hi = count - 1;
+        if (hi < 0 || hash < keys.key(lo) || hash > keys.key(hi)) {
+            return -1;
+        }
+        for (int step = 0; step < INTERPOLATION_STEPS && lo < hi; step++) {
+            long low = keys.key(lo);
+            long high = keys.key(hi);
+            double fraction = ((double) hash - low) / ((double) high - low);
+            int mid = lo + (int) (fraction * (hi - lo));
+            mid = Math.max(lo, Math.min(hi, mid));
+            long key = keys.key(mid);
+            if (key == hash) {
+                return mid;
+            } else if (key < hash) {
+                lo = mid + 1;
+            } else {
+                hi = mid - 1;
+            }
+            if (lo > hi || hash < keys.key(lo) || hash > keys.key(hi)) {
+                return -1;
+            }
+        }
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            long key = keys.key(mid);
+            if (key < hash) {
+                lo = mid + 1;
+            } else if (key > hash) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+}
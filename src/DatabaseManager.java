@@ -36,19 +36,50 @@ public class DatabaseManager {
 
             // Create index on hash for faster lookups
             stmt.execute("CREATE INDEX IF NOT EXISTS idx_fingerprints_hash ON fingerprints (hash)");
+
+            // Databases created before song durations were recorded lack the column
+            if (!hasColumn(stmt, "songs", "duration_ms")) {
+                stmt.execute("ALTER TABLE songs ADD COLUMN duration_ms INTEGER NOT NULL DEFAULT 0");
+            }
+
+            // Create settings table (fingerprinting parameters of this database)
+            stmt.execute("CREATE TABLE IF NOT EXISTS settings (" +
+                    "key TEXT PRIMARY KEY, " +
+                    "value TEXT NOT NULL)");
         } catch (SQLException e) {
             System.err.println("Error initializing database: " + e.getMessage());
             e.printStackTrace();
         }
     }
 
+    private static boolean hasColumn(Statement stmt, String table, String column) throws SQLException {
+        try (ResultSet rs = stmt.executeQuery("PRAGMA table_info(" + table + ")")) {
+            while (rs.next()) {
+                if (column.equalsIgnoreCase(rs.getString("name"))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
     public int addSong(String name, String path) {
+        return addSong(name, path, 0);
+    }
+
+    /**
+     * Adds a song row.
+     * @param durationMs Length of the fingerprinted audio in milliseconds, or 0 if unknown
+     * @return The new song's id, or -1 on error
+     */
+    public int addSong(String name, String path, long durationMs) {
         try (PreparedStatement pstmt = connection.prepareStatement(
-                "INSERT INTO songs (name, path) VALUES (?, ?)",
+                "INSERT INTO songs (name, path, duration_ms) VALUES (?, ?, ?)",
                 Statement.RETURN_GENERATED_KEYS)) {
 
             pstmt.setString(1, name);
             pstmt.setString(2, path);
+            pstmt.setLong(3, durationMs);
             pstmt.executeUpdate();
 
             try (ResultSet rs = pstmt.getGeneratedKeys()) {
@@ -63,7 +94,7 @@ public class DatabaseManager {
         return -1;
     }
 
-    public void addFingerprints(int songId, List<Long> fingerprints) {
+    public void addFingerprints(int songId, FingerprintList fingerprints) {
         try {
             // Use batch processing for better performance
             connection.setAutoCommit(false);
@@ -72,9 +103,9 @@ public class DatabaseManager {
                     "INSERT INTO fingerprints (hash, song_id, time_offset) VALUES (?, ?, ?)")) {
 
                 for (int i = 0; i < fingerprints.size(); i++) {
-                    pstmt.setLong(1, fingerprints.get(i));
+                    pstmt.setLong(1, fingerprints.hash(i));
                     pstmt.setInt(2, songId);
-                    pstmt.setInt(3, i);
+                    pstmt.setInt(3, fingerprints.time(i));
                     pstmt.addBatch();
 
                     // Execute in batches of 1000
@@ -103,6 +134,23 @@ public class DatabaseManager {
         }
     }
 
+    // Every song with its id, path and duration, in id order
+    public List<SongInfo> loadSongs() {
+        List<SongInfo> songs = new ArrayList<>();
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT id, name, path, duration_ms FROM songs ORDER BY id")) {
+
+            while (rs.next()) {
+                songs.add(new SongInfo(rs.getInt("id"), rs.getString("name"),
+                        rs.getString("path"), rs.getLong("duration_ms")));
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving songs: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return songs;
+    }
+
     public List<String> getAllSongs() {
         List<String> songs = new ArrayList<>();
         try (Statement stmt = connection.createStatement();
@@ -118,25 +166,123 @@ public class DatabaseManager {
         return songs;
     }
 
-    public Map<Long, List<DataPoint>> getFingerprints() {
-        Map<Long, List<DataPoint>> fingerprints = new HashMap<>();
-        try (Statement stmt = connection.createStatement();
-             ResultSet rs = stmt.executeQuery(
-                     "SELECT hash, song_id, time_offset FROM fingerprints")) {
+    // Load every fingerprint into the index, sealing it in steps so the
+    // mutable part never holds more than a fraction of the catalogue.
+    public void loadFingerprints(ShardedIndex fingerprints) {
+        loadFingerprints(fingerprints, 0);
+    }
+
+    // Load the fingerprints with a row id above afterId, e.g. the rows added
+    // since a persisted index file was written. Those are published on top of
+    // the existing sealed segment rather than merged into it, unless they have
+    // grown to a sizeable fraction of it.
+    public void loadFingerprints(ShardedIndex fingerprints, long afterId) {
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT hash, song_id, time_offset FROM fingerprints WHERE id > ?")) {
+            pstmt.setLong(1, afterId);
+            ResultSet rs = pstmt.executeQuery();
 
+            long rows = 0;
             while (rs.next()) {
                 long hash = rs.getLong("hash");
                 int songId = rs.getInt("song_id");
                 int timeOffset = rs.getInt("time_offset");
 
-                DataPoint dataPoint = new DataPoint(songId, timeOffset);
-                fingerprints.computeIfAbsent(hash, k -> new ArrayList<>()).add(dataPoint);
+                fingerprints.add(hash, songId, timeOffset);
+                if (++rows % 4096 == 0) {
+                    fingerprints.maybeMerge();
+                }
+            }
+            if (afterId == 0) {
+                fingerprints.merge();
+            } else {
+                fingerprints.publish();
             }
         } catch (SQLException e) {
             System.err.println("Error retrieving fingerprints: " + e.getMessage());
             e.printStackTrace();
         }
-        return fingerprints;
+    }
+
+    // Highest fingerprint row id, or 0 if there are no fingerprints
+    public long getLastFingerprintId() {
+        try (Statement stmt = connection.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT MAX(id) FROM fingerprints")) {
+            if (rs.next()) {
+                return rs.getLong(1);
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving last fingerprint id: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    // Digest of the contents of one fingerprint row, or 0 if the row does not exist.
+    // Lets a persisted index check that it was built from this database.
+    public long getFingerprintRowDigest(long id) {
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "SELECT hash, song_id, time_offset FROM fingerprints WHERE id = ?")) {
+            pstmt.setLong(1, id);
+            ResultSet rs = pstmt.executeQuery();
+            if (rs.next()) {
+                long digest = HashIndex.mix(rs.getLong("hash"));
+                digest = HashIndex.mix(digest ^ HashIndex.pack(rs.getInt("song_id"), rs.getInt("time_offset")));
+                return digest == 0 ? 1 : digest;
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving fingerprint row: " + e.getMessage());
+            e.printStackTrace();
+        }
+        return 0;
+    }
+
+    /**
+     * Returns the fingerprinting parameters of this database, storing them on first use.
+     * A new, empty database takes the given defaults; a database that already holds
+     * fingerprints but has no stored parameters was built with the legacy ones.
+     * @param defaults Parameters to use for a new database
+     * @return Parameters that must be used for ingest and queries on this database
+     */
+    public FingerprintConfig loadFingerprintConfig(FingerprintConfig defaults) {
+        Map<String, String> settings = new HashMap<>();
+        boolean hasFingerprints = false;
+        try (Statement stmt = connection.createStatement()) {
+            try (ResultSet rs = stmt.executeQuery("SELECT key, value FROM settings")) {
+                while (rs.next()) {
+                    settings.put(rs.getString("key"), rs.getString("value"));
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery("SELECT 1 FROM fingerprints LIMIT 1")) {
+                hasFingerprints = rs.next();
+            }
+        } catch (SQLException e) {
+            System.err.println("Error retrieving settings: " + e.getMessage());
+            e.printStackTrace();
+        }
+
+        FingerprintConfig config;
+        if (!settings.isEmpty()) {
+            config = FingerprintConfig.fromSettings(settings);
+        } else {
+            config = hasFingerprints ? FingerprintConfig.LEGACY : defaults;
+        }
+        saveSettings(config.toSettings());
+        return config;
+    }
+
+    private void saveSettings(Map<String, String> settings) {
+        try (PreparedStatement pstmt = connection.prepareStatement(
+                "INSERT OR REPLACE INTO settings (key, value) VALUES (?, ?)")) {
+            for (Map.Entry<String, String> entry : settings.entrySet()) {
+                pstmt.setString(1, entry.getKey());
+                pstmt.setString(2, entry.getValue());
+                pstmt.executeUpdate();
+            }
+        } catch (SQLException e) {
+            System.err.println("Error saving settings: " + e.getMessage());
+            e.printStackTrace();
+        }
     }
 
     public String getSongNameById(int id) {
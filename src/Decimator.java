@@ -0,0 +1,92 @@
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Low-pass filters and downsamples a stream of samples by an integer factor.
+// Only every factor-th filter output is computed, so the cost per output sample
+// is one pass over the taps, the same as a polyphase decimator.
+public class Decimator {
+    // Taps per unit of decimation factor; longer filters give a steeper cutoff
+    private static final int TAPS_PER_FACTOR = 24;
+    // Cutoff as a fraction of the output Nyquist frequency
+    private static final double CUTOFF = 0.9;
+
+    // Filter taps, computed once per factor
+    private static final ConcurrentHashMap<Integer, double[]> FILTERS = new ConcurrentHashMap<>();
+
+    private final int factor;
+    private final double[] taps;
+    // Delay line stored twice so a window of taps.length samples is always contiguous
+    private final double[] delay;
+    private int position;
+    private int phase;
+
+    public Decimator(int factor) {
+        if (factor < 1) {
+            throw new IllegalArgumentException("Decimation factor must be positive: " + factor);
+        }
+        this.factor = factor;
+        this.taps = FILTERS.computeIfAbsent(factor, Decimator::design);
+        this.delay = new double[2 * taps.length];
+    }
+
+    public int getFactor() {
+        return factor;
+    }
+
+    // Forget all buffered samples, ready for a new stream
+    public void reset() {
+        Arrays.fill(delay, 0);
+        position = 0;
+        phase = 0;
+    }
+
+    /**
+     * Filters count 8-bit samples from in[] and writes the retained outputs to out[].
+     * State carries over between calls, so a stream can be fed in pieces of any size.
+     * @return Number of samples written to out[], starting at outOffset
+     */
+    public int process(byte[] in, int count, double[] out, int outOffset) {
+        int length = taps.length;
+        int written = 0;
+        for (int i = 0; i < count; i++) {
+            // Newest sample sits at delay[position], oldest at delay[position + length - 1]
+            position = position == 0 ? length - 1 : position - 1;
+            delay[position] = in[i];
+            delay[position + length] = in[i];
+
+            if (++phase == factor) {
+                phase = 0;
+                double sum = 0;
+                for (int k = 0; k < length; k++) {
+                    sum += taps[k] * delay[position + k];
+                }
+                out[outOffset + written++] = sum;
+            }
+        }
+        return written;
+    }
+
+    // Blackman-windowed sinc low-pass with unit gain at DC
+    private static double[] design(int factor) {
+        if (factor == 1) {
+            return new double[] {1};
+        }
+        int length = TAPS_PER_FACTOR * factor + 1;
+        double[] h = new double[length];
+        double cutoff = CUTOFF * 0.5 / factor;
+        double middle = (length - 1) / 2.0;
+        double sum = 0;
+        for (int k = 0; k < length; k++) {
+            double x = k - middle;
+            double sinc = x == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * x) / (Math.PI * x);
+            double w = 0.42 - 0.5 * Math.cos(2 * Math.PI * k / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * k / (length - 1));
+            h[k] = sinc * w;
+            sum += h[k];
+        }
+        for (int k = 0; k < length; k++) {
+            h[k] /= sum;
+        }
+        return h;
+    }
+}
@@ -1,81 +1,696 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
+// Matches recordings against the in-memory index. Queries may run on any number of
+// threads while one song at a time is added: readers pin an immutable snapshot of
+// each shard (see SegmentedIndex) and never block, and writers serialise on writeLock.
 public class EnhancedMatcher {
-    // List of song names; index in the list is the song ID
-    private final Map<Integer, String> songs;
-    // Database: map from fingerprint hash to list of DataPoints
-    private final Map<Long, List<DataPoint>> hashDatabase;
+    // With early exit and several shards, query hashes are scattered in rounds of this many
+    private static final int EARLY_EXIT_ROUND = 64;
+
+    // Song metadata by id, so results are resolved without querying the database
+    private final SongCatalog songs;
+    // Database: inverted index from fingerprint hash to (songId, time) postings, split into shards
+    private final ShardedIndex hashDatabase;
     private final DatabaseManager dbManager;
+    private final MatcherConfig config;
+    // Persisted copy of the sealed index (one file per shard), or null
+    private final Path indexFile;
+    // Whether the index holds fingerprints the index file does not; guarded by writeLock
+    private boolean indexFileStale;
+    // Held while the index is modified; queries never take it
+    private final Object writeLock = new Object();
+    // Results of recent queries, or null if caching is off
+    private final QueryCache queryCache;
+
+    // Reused by every query on a thread so scoring does not allocate; one histogram per shard
+    private static final ThreadLocal<OffsetHistogram[]> HISTOGRAMS = ThreadLocal.withInitial(() -> new OffsetHistogram[0]);
 
     public EnhancedMatcher(DatabaseManager dbManager) {
+        this(dbManager, MatcherConfig.DEFAULT);
+    }
+
+    public EnhancedMatcher(DatabaseManager dbManager, MatcherConfig config) {
         this.dbManager = dbManager;
-        this.songs = new HashMap<>();
-        this.hashDatabase = dbManager.getFingerprints();
+        this.config = config;
+        this.songs = new SongCatalog();
+        this.queryCache = config.getQueryCacheSize() > 0
+                ? new QueryCache(config.getQueryCacheSize(), config.getQueryCacheTtlMillis())
+                : null;
+        this.indexFile = config.getIndexFile();
+        // Seal the catalogue into sorted segments on the configured backend; new songs go to a small delta
+        this.hashDatabase = indexFile != null
+                ? openIndex(config.segmentFactory(), config.getShards())
+                : new ShardedIndex(config.getShards(), config.segmentFactory(), config.getBloomBitsPerKey());
+        if (indexFile == null) {
+            dbManager.loadFingerprints(hashDatabase);
+        }
+
+        songs.load(dbManager);
+    }
+
+    // Index file of shard i; a single shard uses the configured path as is
+    private Path shardFile(int shard, int shardCount) {
+        return shardCount == 1 ? indexFile : indexFile.resolveSibling(indexFile.getFileName() + "." + shard);
+    }
+
+    // Maps the index files if they were built from this database with the same sharding,
+    // loading only the rows added since they were written; otherwise rebuilds the index
+    // and writes new files. Rows added since are kept in a recent segment on top of the
+    // mapped one, so a file that is a little behind is not copied, and it is rewritten on close.
+    private ShardedIndex openIndex(IndexSegment.Factory factory, int shardCount) {
+        long lastId = dbManager.getLastFingerprintId();
+        IndexFile[] files = new IndexFile[shardCount];
+        boolean usable = true;
+        for (int i = 0; i < shardCount; i++) {
+            files[i] = IndexFile.open(shardFile(i, shardCount));
+            usable = usable && files[i] != null
+                    && files[i].getShard() == i && files[i].getShardCount() == shardCount
+                    && files[i].getLastFingerprintId() == files[0].getLastFingerprintId()
+                    && files[i].getLastRowDigest() == files[0].getLastRowDigest();
+        }
+        long fileLastId = usable ? files[0].getLastFingerprintId() : 0;
+        if (usable && fileLastId <= lastId
+                && files[0].getLastRowDigest() == dbManager.getFingerprintRowDigest(fileLastId)) {
+            SegmentedIndex[] shards = new SegmentedIndex[shardCount];
+            for (int i = 0; i < shardCount; i++) {
+                // Filters are not stored in the file; rebuilding one from the mapped keys is a single pass
+                shards[i] = new SegmentedIndex(factory, files[i].getSegment(), config.getBloomBitsPerKey());
+            }
+            ShardedIndex index = new ShardedIndex(shards);
+            dbManager.loadFingerprints(index, fileLastId);
+            indexFileStale = fileLastId < lastId;
+            return index;
+        }
 
-        // Load song IDs and names
-        List<String> songNames = dbManager.getAllSongs();
-        for (int i = 0; i < songNames.size(); i++) {
-            songs.put(i + 1, songNames.get(i)); // SQLite IDs start at 1
+        boolean found = false;
+        for (IndexFile file : files) {
+            if (file != null) {
+                file.getSegment().close();
+                found = true;
+            }
+        }
+        if (found) {
+            System.out.println("Index file " + indexFile + " does not match the database, rebuilding it");
+        }
+        ShardedIndex index = new ShardedIndex(shardCount, factory, config.getBloomBitsPerKey());
+        dbManager.loadFingerprints(index);
+        saveIndex(index);
+        return index;
+    }
+
+    // Writes each shard's sealed index to its file, stamped with the last fingerprint row it covers
+    private void saveIndex(ShardedIndex index) {
+        long lastId = dbManager.getLastFingerprintId();
+        long digest = dbManager.getFingerprintRowDigest(lastId);
+        int shardCount = index.shardCount();
+        try {
+            for (int i = 0; i < shardCount; i++) {
+                IndexFile.write(shardFile(i, shardCount), index.shard(i).seal(), lastId, digest, i, shardCount);
+            }
+            indexFileStale = false;
+        } catch (IOException e) {
+            System.err.println("Error writing index file " + indexFile + ": " + e.getMessage());
+            e.printStackTrace();
         }
     }
 
     // Given a list of fingerprints from a recording, try to match against the database
-    public MatchResult match(List<Long> recordingFingerprints) {
-        // Map: songId -> (offset -> count)
-        Map<Integer, Map<Integer, Integer>> offsetCounts = new HashMap<>();
+    public MatchResult match(FingerprintList recordingFingerprints) {
+        if (queryCache == null) {
+            return search(recordingFingerprints);
+        }
+        // Identical fingerprint sequences give identical results until songs are added
+        ByteBuffer key = QueryCache.key(recordingFingerprints);
+        MatchResult result = queryCache.get(key);
+        if (result == null) {
+            long generation = queryCache.generation();
+            result = search(recordingFingerprints);
+            queryCache.put(key, result, generation);
+        }
+        return result;
+    }
 
-        for (int recTime = 0; recTime < recordingFingerprints.size(); recTime++) {
-            long hash = recordingFingerprints.get(recTime);
-            List<DataPoint> matchPoints = hashDatabase.get(hash);
+    /**
+     * Matches many recordings at once, with the same results as calling match on each.
+     * The distinct hashes of the whole batch are sorted and looked up once per shard,
+     * and their postings replayed to every query that contains them, so hashes shared
+     * by several recordings cost a single index lookup. The postings of all distinct
+     * hashes are held in memory while the batch is scored; split very large batches.
+     * With early exit, hashes a query would have stopped before are still looked up.
+     * @return One result per query, in order
+     */
+    public List<MatchResult> matchAll(List<FingerprintList> queries) {
+        MatchResult[] results = new MatchResult[queries.size()];
+        ByteBuffer[] keys = new ByteBuffer[queries.size()];
+        long generation = queryCache == null ? 0 : queryCache.generation();
+        List<FingerprintList> misses = new ArrayList<>();
+        for (int q = 0; q < queries.size(); q++) {
+            if (queryCache != null) {
+                keys[q] = QueryCache.key(queries.get(q));
+                results[q] = queryCache.get(keys[q]);
+            }
+            if (results[q] == null) {
+                misses.add(queries.get(q));
+            }
+        }
 
-            if (matchPoints != null) {
-                for (DataPoint dp : matchPoints) {
-                    int songId = dp.getSongId();
-                    int offset = dp.getTime() - recTime;
+        List<MatchResult> searched = searchAll(misses);
+        int next = 0;
+        for (int q = 0; q < results.length; q++) {
+            if (results[q] == null) {
+                results[q] = searched.get(next++);
+                if (queryCache != null) {
+                    queryCache.put(keys[q], results[q], generation);
+                }
+            }
+        }
+        return Arrays.asList(results);
+    }
+
+    // The query cache, or null if caching is off. Callers may cache results under
+    // their own keys too (e.g. of the raw audio); adding songs invalidates them.
+    public QueryCache getQueryCache() {
+        return queryCache;
+    }
 
-                    Map<Integer, Integer> songOffsets = offsetCounts.computeIfAbsent(songId, k -> new HashMap<>());
-                    songOffsets.put(offset, songOffsets.getOrDefault(offset, 0) + 1);
+    /**
+     * Observed and expected false-positive rates of the Bloom prefilter, or null if
+     * it is off. The observed rate is the share of query lookups of hashes absent
+     * from a shard that some filter still let through to a search; lookups made
+     * while adding songs are not counted.
+     */
+    public String getPrefilterStats() {
+        if (config.getBloomBitsPerKey() == 0) {
+            return null;
+        }
+        long[] counts = hashDatabase.filterCounts();
+        long absent = counts[0] + counts[1];
+        double expected = 0;
+        for (int i = 0; i < hashDatabase.shardCount(); i++) {
+            expected += hashDatabase.shard(i).getExpectedFalsePositiveRate() / hashDatabase.shardCount();
+        }
+        return String.format("Prefilter: %d lookups of absent hashes, %d false positives (%.3f%% observed, %.3f%% expected)",
+                absent, counts[1], absent == 0 ? 0.0 : 100.0 * counts[1] / absent, 100 * expected);
+    }
+
+    // Scores the query against the index without consulting the query cache, e.g. when the
+    // caller caches the result under a key of its own
+    public MatchResult search(FingerprintList recordingFingerprints) {
+        // Count aligned hits per (songId, offset) in each shard; the histograms keep the top
+        // candidates as they go. Early exit needs the runner-up, so a heap then holds at least two songs.
+        int shardCount = hashDatabase.shardCount();
+        OffsetHistogram[] histograms = resetHistograms(shardCount);
+
+        // Pin a consistent view of every shard; songs added meanwhile are not seen by this query
+        SegmentedIndex.Snapshot[] snapshots = new SegmentedIndex.Snapshot[shardCount];
+        for (int s = 0; s < shardCount; s++) {
+            snapshots[s] = hashDatabase.shard(s).acquire();
+        }
+        try {
+            return score(recordingFingerprints, snapshots, histograms);
+        } finally {
+            for (SegmentedIndex.Snapshot snapshot : snapshots) {
+                snapshot.release();
+            }
+        }
+    }
+
+    private MatchResult score(FingerprintList recordingFingerprints, SegmentedIndex.Snapshot[] snapshots,
+                              OffsetHistogram[] histograms) {
+        int shardCount = snapshots.length;
+        int queryHashes = recordingFingerprints.size();
+        int consumed = 0;
+        int dropped = 0;
+        if (shardCount == 1) {
+            OffsetHistogram histogram = histograms[0];
+            SegmentedIndex.Snapshot index = snapshots[0];
+            while (consumed < queryHashes) {
+                histogram.setQueryTime(recordingFingerprints.time(consumed));
+                // Stop-listed hashes occur in too many songs to tell them apart
+                if (!index.forEach(recordingFingerprints.hash(consumed), config.getMaxPostings(), histogram)) {
+                    dropped++;
+                }
+                consumed++;
+                if (config.isEarlyExit() && isDecided(histograms, 1, queryHashes - consumed)) {
+                    break;
+                }
+            }
+        } else {
+            // Scatter the query to every shard in parallel, a round at a time with early exit.
+            // Whether a hash is stop-listed depends on its postings in all shards, so it is
+            // decided here for the round and every shard skips the same hashes.
+            boolean[] droppedHashes = new boolean[queryHashes];
+            ShardTask[] tasks = new ShardTask[shardCount];
+            for (int s = 0; s < shardCount; s++) {
+                tasks[s] = new ShardTask(snapshots[s], histograms[s], recordingFingerprints, droppedHashes);
+            }
+            int round = config.isEarlyExit() ? EARLY_EXIT_ROUND : Math.max(1, queryHashes);
+            while (consumed < queryHashes) {
+                int to = Math.min(queryHashes, consumed + round);
+                for (int i = consumed; i < to; i++) {
+                    droppedHashes[i] = isStopListed(recordingFingerprints.hash(i), snapshots);
+                }
+                for (ShardTask task : tasks) {
+                    task.reinitialize();
+                    task.from = consumed;
+                    task.to = to;
+                }
+                ForkJoinTask.invokeAll(tasks);
+                consumed = to;
+                if (config.isEarlyExit() && isDecided(histograms, shardCount, queryHashes - consumed)) {
+                    break;
                 }
             }
+            dropped = count(droppedHashes, consumed);
         }
 
-        // Find the song with the highest number of aligned matches
-        int bestSongId = -1;
-        int bestOffset = 0;
-        int bestCount = 0;
+        return toResult(histograms, shardCount, queryHashes, consumed, dropped);
+    }
 
-        for (Map.Entry<Integer, Map<Integer, Integer>> entry : offsetCounts.entrySet()) {
-            int songId = entry.getKey();
-            Map<Integer, Integer> offsets = entry.getValue();
+    // Whether hash has maxPostings or more postings in the catalogue, summed over the shards
+    private boolean isStopListed(long hash, SegmentedIndex.Snapshot[] snapshots) {
+        if (config.getMaxPostings() == 0) {
+            return false;
+        }
+        int count = 0;
+        for (SegmentedIndex.Snapshot snapshot : snapshots) {
+            count += snapshot.postingCount(hash);
+            if (count >= config.getMaxPostings()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // This thread's histograms, reset for a new query
+    private OffsetHistogram[] resetHistograms(int shardCount) {
+        OffsetHistogram[] histograms = histograms(shardCount);
+        int heapSize = config.isEarlyExit() ? Math.max(2, config.getTopK()) : config.getTopK();
+        for (int s = 0; s < shardCount; s++) {
+            histograms[s].reset(heapSize);
+        }
+        return histograms;
+    }
 
-            for (Map.Entry<Integer, Integer> offsetEntry : offsets.entrySet()) {
-                int offset = offsetEntry.getKey();
-                int count = offsetEntry.getValue();
+    // This thread's histograms, at least shardCount of them
+    private static OffsetHistogram[] histograms(int shardCount) {
+        OffsetHistogram[] histograms = HISTOGRAMS.get();
+        if (histograms.length < shardCount) {
+            OffsetHistogram[] grown = Arrays.copyOf(histograms, shardCount);
+            for (int s = histograms.length; s < shardCount; s++) {
+                grown[s] = new OffsetHistogram();
+            }
+            histograms = grown;
+            HISTOGRAMS.set(histograms);
+        }
+        return histograms;
+    }
 
-                if (count > bestCount) {
-                    bestCount = count;
-                    bestSongId = songId;
-                    bestOffset = offset;
+    // Scores a batch of queries like matchAll, looking up each distinct hash once per shard,
+    // without consulting the query cache
+    public List<MatchResult> searchAll(List<FingerprintList> queries) {
+        if (queries.isEmpty()) {
+            return List.of();
+        }
+        // Sorted distinct hashes of the batch, and where each query hash sits among them
+        int total = 0;
+        for (FingerprintList query : queries) {
+            total += query.size();
+        }
+        long[] hashes = new long[total];
+        int n = 0;
+        for (FingerprintList query : queries) {
+            for (int i = 0; i < query.size(); i++) {
+                hashes[n++] = query.hash(i);
+            }
+        }
+        Arrays.sort(hashes);
+        int distinct = 0;
+        for (int i = 0; i < total; i++) {
+            if (i == 0 || hashes[i] != hashes[distinct - 1]) {
+                hashes[distinct++] = hashes[i];
+            }
+        }
+        hashes = Arrays.copyOf(hashes, distinct);
+        int[][] slots = new int[queries.size()][];
+        for (int q = 0; q < queries.size(); q++) {
+            FingerprintList query = queries.get(q);
+            slots[q] = new int[query.size()];
+            for (int i = 0; i < query.size(); i++) {
+                slots[q][i] = Arrays.binarySearch(hashes, query.hash(i));
+            }
+        }
+
+        // Fetch every shard's postings of those hashes from one consistent view of the index
+        int shardCount = hashDatabase.shardCount();
+        SegmentedIndex.Snapshot[] snapshots = new SegmentedIndex.Snapshot[shardCount];
+        for (int s = 0; s < shardCount; s++) {
+            snapshots[s] = hashDatabase.shard(s).acquire();
+        }
+        PostingTable[] tables = new PostingTable[shardCount];
+        try {
+            // Stop-list from the postings in all shards, so every shard skips the same hashes
+            boolean[] stopped = new boolean[distinct];
+            for (int i = 0; i < distinct; i++) {
+                stopped[i] = isStopListed(hashes[i], snapshots);
+            }
+            ProbeTask[] probes = new ProbeTask[shardCount];
+            for (int s = 0; s < shardCount; s++) {
+                probes[s] = new ProbeTask(snapshots[s], hashes, stopped, tables, s);
+            }
+            ForkJoinTask.invokeAll(probes);
+        } finally {
+            for (SegmentedIndex.Snapshot snapshot : snapshots) {
+                snapshot.release();
+            }
+        }
+
+        // Score the queries in parallel, each worker with its own histograms
+        MatchResult[] results = new MatchResult[queries.size()];
+        int workers = Math.max(1, Math.min(queries.size(), ForkJoinPool.getCommonPoolParallelism()));
+        ReplayTask[] replays = new ReplayTask[workers];
+        for (int w = 0; w < workers; w++) {
+            replays[w] = new ReplayTask(tables, queries, slots, results, w, workers);
+        }
+        ForkJoinTask.invokeAll(replays);
+        return Arrays.asList(results);
+    }
+
+    /**
+     * Scores one query from the batch's posting tables. Hashes are scored in the same
+     * order and rounds as score(), so hits, early exit and ties come out the same.
+     */
+    private MatchResult replay(FingerprintList query, int[] slots, PostingTable[] tables) {
+        int shardCount = tables.length;
+        OffsetHistogram[] histograms = resetHistograms(shardCount);
+        int queryHashes = query.size();
+        int round = shardCount == 1 ? 1 : config.isEarlyExit() ? EARLY_EXIT_ROUND : Math.max(1, queryHashes);
+        int consumed = 0;
+        // Hashes skipped by any shard, as in score()
+        boolean[] droppedHashes = new boolean[queryHashes];
+        while (consumed < queryHashes) {
+            int to = Math.min(queryHashes, consumed + round);
+            for (int s = 0; s < shardCount; s++) {
+                for (int i = consumed; i < to; i++) {
+                    histograms[s].setQueryTime(query.time(i));
+                    if (!tables[s].forEach(slots[i], histograms[s])) {
+                        droppedHashes[i] = true;
+                    }
                 }
             }
+            consumed = to;
+            if (config.isEarlyExit() && isDecided(histograms, shardCount, queryHashes - consumed)) {
+                break;
+            }
         }
+        return toResult(histograms, shardCount, queryHashes, consumed, count(droppedHashes, consumed));
+    }
+
+    // Looks up a batch's distinct hashes in one shard
+    private final class ProbeTask extends RecursiveAction {
+        private final SegmentedIndex.Snapshot index;
+        private final long[] hashes;
+        private final boolean[] stopped;
+        private final PostingTable[] tables;
+        private final int shard;
 
-        if (bestSongId >= 0 && bestCount >= 2) { // Minimum threshold for a match
-            String songName = dbManager.getSongNameById(bestSongId);
-            return new MatchResult(true, songName, bestCount, bestOffset);
+        ProbeTask(SegmentedIndex.Snapshot index, long[] hashes, boolean[] stopped, PostingTable[] tables, int shard) {
+            this.index = index;
+            this.hashes = hashes;
+            this.stopped = stopped;
+            this.tables = tables;
+            this.shard = shard;
         }
 
-        return new MatchResult(false, "", 0, 0);
+        @Override
+        protected void compute() {
+            tables[shard] = new PostingTable(index, hashes, stopped);
+        }
     }
 
-    // Adds a song to the in-memory database (useful for newly added songs)
-    public void addToMemory(int songId, String songName, List<Long> fingerprints) {
-        songs.put(songId, songName);
+    // Scores every stride-th query of a batch, starting at first
+    private final class ReplayTask extends RecursiveAction {
+        private final PostingTable[] tables;
+        private final List<FingerprintList> queries;
+        private final int[][] slots;
+        private final MatchResult[] results;
+        private final int first;
+        private final int stride;
 
-        for (int time = 0; time < fingerprints.size(); time++) {
-            long hash = fingerprints.get(time);
-            DataPoint dp = new DataPoint(songId, time);
-            hashDatabase.computeIfAbsent(hash, k -> new ArrayList<>()).add(dp);
+        ReplayTask(PostingTable[] tables, List<FingerprintList> queries, int[][] slots, MatchResult[] results,
+                   int first, int stride) {
+            this.tables = tables;
+            this.queries = queries;
+            this.slots = slots;
+            this.results = results;
+            this.first = first;
+            this.stride = stride;
+        }
+
+        @Override
+        protected void compute() {
+            for (int q = first; q < queries.size(); q += stride) {
+                results[q] = replay(queries.get(q), slots[q], tables);
+            }
+        }
+    }
+
+    // Scores query hashes [from, to) against one shard
+    private final class ShardTask extends RecursiveAction {
+        private final SegmentedIndex.Snapshot index;
+        private final OffsetHistogram histogram;
+        private final FingerprintList query;
+        private int from;
+        private int to;
+        // Stop-listed query hashes, decided before the round for all shards
+        private final boolean[] dropped;
+
+        ShardTask(SegmentedIndex.Snapshot index, OffsetHistogram histogram, FingerprintList query,
+                  boolean[] dropped) {
+            this.index = index;
+            this.histogram = histogram;
+            this.query = query;
+            this.dropped = dropped;
+        }
+
+        @Override
+        protected void compute() {
+            for (int i = from; i < to; i++) {
+                if (dropped[i]) continue;
+                histogram.setQueryTime(query.time(i));
+                index.forEach(query.hash(i), 0, histogram);
+            }
+        }
+    }
+
+    // Number of the first n flags that are set
+    private static int count(boolean[] flags, int n) {
+        int count = 0;
+        for (int i = 0; i < n; i++) {
+            if (flags[i]) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Whether the best song has won, given the number of query hashes still to score.
+     * A query hash adds at most one hit to any (song, offset), as a song holds a hash
+     * at most once per time, so the leader cannot be overtaken once it is ahead of the
+     * runner-up by more than the remaining hashes. A configured margin stops sooner.
+     * Songs are split across shards, so the runner-up is the best of the leader's
+     * shard's runner-up and the other shards' leaders.
+     */
+    private boolean isDecided(OffsetHistogram[] histograms, int shardCount, int remaining) {
+        int leaderShard = 0;
+        for (int s = 1; s < shardCount; s++) {
+            if (histograms[s].getBestCount() > histograms[leaderShard].getBestCount()) {
+                leaderShard = s;
+            }
+        }
+        int leader = histograms[leaderShard].getBestCount();
+        if (leader < config.getMinMatches()) {
+            return false;
+        }
+        int runnerUp = histograms[leaderShard].getRunnerUpCount();
+        for (int s = 0; s < shardCount; s++) {
+            if (s != leaderShard) {
+                runnerUp = Math.max(runnerUp, histograms[s].getBestCount());
+            }
+        }
+        int margin = config.getEarlyExitMargin();
+        return leader - runnerUp > remaining || (margin > 0 && leader - runnerUp >= margin);
+    }
+
+    // Merges the shards' ranked candidates; the first one is the match if it has enough hits
+    private MatchResult toResult(OffsetHistogram[] histograms, int shardCount,
+                                 int queryHashes, int consumed, int dropped) {
+        // Each shard's list is sorted, so a k-way merge of the heads yields the global top K
+        int[] next = new int[shardCount];
+        for (int s = 0; s < shardCount; s++) {
+            histograms[s].rankCandidates();
+        }
+        int[] songIds = new int[config.getTopK()];
+        int[] offsets = new int[config.getTopK()];
+        int[] hits = new int[config.getTopK()];
+        int count = 0;
+        while (count < config.getTopK()) {
+            int best = -1;
+            for (int s = 0; s < shardCount; s++) {
+                if (next[s] == histograms[s].candidates()) continue;
+                if (best < 0 || isRankedBefore(histograms[s], next[s], histograms[best], next[best])) {
+                    best = s;
+                }
+            }
+            if (best < 0) break;
+            songIds[count] = histograms[best].candidateSongId(next[best]);
+            offsets[count] = histograms[best].candidateOffset(next[best]);
+            hits[count] = histograms[best].candidateHits(next[best]);
+            next[best]++;
+            count++;
+        }
+
+        List<Candidate> candidates = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            // Compare the leader with the runner-up, and everyone else with the leader
+            int rival = i == 0 ? (count > 1 ? hits[1] : 0) : hits[0];
+            double coverage = queryHashes == 0 ? 0 : Math.min(1.0, (double) hits[i] / queryHashes);
+            double confidence = coverage * hits[i] / (hits[i] + rival);
+            candidates.add(new Candidate(song(songIds[i]), hits[i], offsets[i], confidence));
+        }
+
+        if (count > 0 && candidates.get(0).getMatchCount() >= config.getMinMatches()) {
+            Candidate best = candidates.get(0);
+            return new MatchResult(true, best.getSongName(), best.getMatchCount(), best.getTimeOffset(),
+                    candidates, consumed, dropped);
+        }
+        return new MatchResult(false, "", 0, 0, candidates, consumed, dropped);
+    }
+
+    // Catalogue entry of songId; songs added to the database by another process are looked up once
+    private SongInfo song(int songId) {
+        SongInfo song = songs.get(songId);
+        if (song == null) {
+            song = new SongInfo(songId, dbManager.getSongNameById(songId), null, 0);
+            songs.put(song);
+        }
+        return song;
+    }
+
+    // Ranking order of candidates: more hits first, then lower songId
+    private static boolean isRankedBefore(OffsetHistogram a, int i, OffsetHistogram b, int j) {
+        if (a.candidateHits(i) != b.candidateHits(j)) {
+            return a.candidateHits(i) > b.candidateHits(j);
+        }
+        return a.candidateSongId(i) < b.candidateSongId(j);
+    }
+
+    /**
+     * Adds a song to the in-memory database (useful for newly added songs).
+     * With a posting cap, fingerprints whose hash is already stop-listed are left out.
+     * Safe to call while queries run; the song becomes visible to queries that start after it returns.
+     * @return The fingerprints that were indexed; store these, not the input, in the database
+     */
+    public FingerprintList addToMemory(int songId, String songName, FingerprintList fingerprints) {
+        return addToMemory(new SongInfo(songId, songName, null, 0), fingerprints);
+    }
+
+    // Same, recording the song's full catalogue entry
+    public FingerprintList addToMemory(SongInfo song, FingerprintList fingerprints) {
+        synchronized (writeLock) {
+            songs.put(song);
+            FingerprintList indexed = index(song.getId(), fingerprints);
+            if (queryCache != null) {
+                queryCache.invalidate();
+            }
+            return indexed;
+        }
+    }
+
+    private FingerprintList index(int songId, FingerprintList fingerprints) {
+        SegmentedIndex shard = hashDatabase.shard(hashDatabase.shardOf(songId));
+        int maxPostings = config.getMaxPostings();
+        FingerprintList indexed = maxPostings > 0 ? new FingerprintList() : fingerprints;
+        for (int i = 0; i < fingerprints.size(); i++) {
+            long hash = fingerprints.hash(i);
+            if (maxPostings > 0) {
+                // Counted over all shards, like the stop-list at query time
+                if (hashDatabase.postingCount(hash) >= maxPostings) continue;
+                indexed.add(fingerprints.time(i), hash);
+            }
+            shard.add(hash, songId, fingerprints.time(i));
+        }
+        shard.publish();
+        indexFileStale = true;
+        return indexed;
+    }
+
+    // Brings the index files up to date and releases index memory held outside the Java heap
+    // Queries still running keep their snapshots until they finish.
+    public void close() {
+        synchronized (writeLock) {
+            if (indexFile != null && indexFileStale) {
+                saveIndex(hashDatabase);
+            }
+            hashDatabase.close();
+        }
+    }
+
+    // One ranked song of a match result
+    public static class Candidate {
+        private final SongInfo song;
+        private final int matchCount;
+        private final int timeOffset;
+        private final double confidence;
+
+        public Candidate(SongInfo song, int matchCount, int timeOffset, double confidence) {
+            this.song = song;
+            this.matchCount = matchCount;
+            this.timeOffset = timeOffset;
+            this.confidence = confidence;
+        }
+
+        public SongInfo getSong() {
+            return song;
+        }
+
+        public int getSongId() {
+            return song.getId();
+        }
+
+        public String getSongName() {
+            return song.getName();
+        }
+
+        // Query hashes aligned at the candidate's best offset
+        public int getMatchCount() {
+            return matchCount;
+        }
+
+        public int getTimeOffset() {
+            return timeOffset;
+        }
+
+        /**
+         * Score in [0, 1]: the fraction of query hashes that align, times
+         * matchCount / (matchCount + rival), where the rival is the runner-up
+         * for the leader and the leader for everyone else. A clean, unambiguous
+         * match approaches 1; two equally good candidates get at most 0.5.
+         */
+        public double getConfidence() {
+            return confidence;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s (%d matching points, confidence %.2f)", song.getName(), matchCount, confidence);
         }
     }
 
@@ -85,12 +700,23 @@ public class EnhancedMatcher {
         private final String songName;
         private final int matchCount;
         private final int timeOffset;
+        private final List<Candidate> candidates;
+        private final int hashesConsumed;
+        private final int hashesDropped;
 
         public MatchResult(boolean matched, String songName, int matchCount, int timeOffset) {
+            this(matched, songName, matchCount, timeOffset, Collections.emptyList(), 0, 0);
+        }
+
+        public MatchResult(boolean matched, String songName, int matchCount, int timeOffset,
+                           List<Candidate> candidates, int hashesConsumed, int hashesDropped) {
             this.matched = matched;
             this.songName = songName;
             this.matchCount = matchCount;
             this.timeOffset = timeOffset;
+            this.candidates = Collections.unmodifiableList(candidates);
+            this.hashesConsumed = hashesConsumed;
+            this.hashesDropped = hashesDropped;
         }
 
         public boolean isMatched() {
@@ -109,6 +735,22 @@ public class EnhancedMatcher {
             return timeOffset;
         }
 
+        // Best songs by aligned hits, strongest first, whether or not there was a match
+        public List<Candidate> getCandidates() {
+            return candidates;
+        }
+
+        // Query hashes scored before the match was decided; less than the query's
+        // length when early exit stopped scoring
+        public int getHashesConsumed() {
+            return hashesConsumed;
+        }
+
+        // Consumed query hashes skipped because they are stop-listed (in at least one shard)
+        public int getHashesDropped() {
+            return hashesDropped;
+        }
+
         @Override
         public String toString() {
             if (matched) {
@@ -1,35 +1,391 @@
 // FFT.java
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
 public class FFT {
 
+    // Bit-reversal and twiddle tables, computed once per transform size
+    private static final ConcurrentHashMap<Integer, Tables> TABLES = new ConcurrentHashMap<>();
+    // Pruning plans for band-limited real transforms, keyed by "size:from:to"
+    private static final ConcurrentHashMap<String, BandPlan> BAND_PLANS = new ConcurrentHashMap<>();
+    // Number of double lanes used by the SIMD kernels, or 0 to use the scalar code
+    static final int VECTOR_LANES = vectorLanes();
+
     // Compute the FFT of x[], assuming its length is a power of 2
     public static Complex[] fft(Complex[] x) {
         int n = x.length;
-        if (n == 1) return new Complex[]{x[0]};
-        if (n % 2 != 0) {
+        double[] re = new double[n];
+        double[] im = new double[n];
+        for (int k = 0; k < n; k++) {
+            re[k] = x[k].re();
+            im[k] = x[k].im();
+        }
+        fft(re, im);
+
+        Complex[] y = new Complex[n];
+        for (int k = 0; k < n; k++) {
+            y[k] = new Complex(re[k], im[k]);
+        }
+        return y;
+    }
+
+    /**
+     * Computes the FFT in place on split real/imaginary buffers.
+     * Both arrays must have the same power-of-2 length.
+     * @param re Real parts, replaced by the real parts of the spectrum
+     * @param im Imaginary parts, replaced by the imaginary parts of the spectrum
+     */
+    public static void fft(double[] re, double[] im) {
+        if (im.length != re.length) {
+            throw new IllegalArgumentException("Real and imaginary buffers differ in length");
+        }
+        transform(re, im, re.length);
+    }
+
+    /**
+     * Computes the spectrum of n real samples using an n/2-point complex FFT.
+     * Even samples are packed into the real parts and odd samples into the
+     * imaginary parts, and the result is unpacked into bins 0..n/2.
+     * @param x Real input samples; the length must be a power of 2 and at least 2
+     * @param re Receives the real parts of bins 0..n/2; needs at least n/2 + 1 entries
+     * @param im Receives the imaginary parts of bins 0..n/2; needs at least n/2 + 1 entries
+     */
+    public static void realFft(double[] x, double[] re, double[] im) {
+        int n = x.length;
+        int m = n / 2;
+        if (n < 2) {
+            throw new IllegalArgumentException("Real FFT needs at least 2 samples");
+        }
+        if (re.length <= m || im.length <= m) {
+            throw new IllegalArgumentException("Output buffers must hold n/2 + 1 bins");
+        }
+        Tables tables = tables(n);
+
+        // Pack the real signal into a half-length complex signal
+        for (int k = 0; k < m; k++) {
+            re[k] = x[2 * k];
+            im[k] = x[2 * k + 1];
+        }
+        transform(re, im, m);
+
+        // Split the packed spectrum back into the even and odd sample spectra and combine them
+        double z0r = re[0];
+        double z0i = im[0];
+        re[0] = z0r + z0i;
+        im[0] = 0;
+        re[m] = z0r - z0i;
+        im[m] = 0;
+
+        double[] cos = tables.cos;
+        double[] sin = tables.sin;
+        for (int k = 1; k <= m / 2; k++) {
+            unpackPair(re, im, cos, sin, k, m);
+        }
+    }
+
+    /**
+     * Computes only bins band.from..band.to-1 of the real-input FFT of x[].
+     * Butterflies that cannot reach those bins are skipped, and the rest run
+     * exactly as in realFft, so the requested bins are bit-identical to it.
+     * Entries of re[] and im[] outside the band are left undefined.
+     * @param x Real input samples; the length must match the band plan
+     * @param re Receives the real parts; needs at least n/2 + 1 entries
+     * @param im Receives the imaginary parts; needs at least n/2 + 1 entries
+     * @param band Plan built by bandPlan for this transform size
+     */
+    public static void realFft(double[] x, double[] re, double[] im, BandPlan band) {
+        int n = x.length;
+        int m = n / 2;
+        if (band.size != n) {
+            throw new IllegalArgumentException("Band plan was built for size " + band.size);
+        }
+        if (re.length <= m || im.length <= m) {
+            throw new IllegalArgumentException("Output buffers must hold n/2 + 1 bins");
+        }
+        Tables tables = tables(n);
+
+        for (int k = 0; k < m; k++) {
+            re[k] = x[2 * k];
+            im[k] = x[2 * k + 1];
+        }
+        transform(re, im, m, band.runs);
+
+        if (band.from == 0 || band.to > m) {
+            double z0r = re[0];
+            double z0i = im[0];
+            re[0] = z0r + z0i;
+            im[0] = 0;
+            re[m] = z0r - z0i;
+            im[m] = 0;
+        }
+
+        // Unpack only the bin pairs (k, m - k) that touch the band
+        double[] cos = tables.cos;
+        double[] sin = tables.sin;
+        int[] pairs = band.pairs;
+        for (int r = 0; r < pairs.length; r += 2) {
+            for (int k = pairs[r]; k < pairs[r + 1]; k++) {
+                unpackPair(re, im, cos, sin, k, m);
+            }
+        }
+    }
+
+    /**
+     * Builds (or returns the cached) plan for computing bins from..to-1 of an
+     * n-point real-input FFT.
+     */
+    public static BandPlan bandPlan(int n, int from, int to) {
+        if (n < 2 || from < 0 || to > n / 2 + 1 || from >= to) {
+            throw new IllegalArgumentException("Invalid band " + from + ".." + to + " for size " + n);
+        }
+        tables(n);
+        return BAND_PLANS.computeIfAbsent(n + ":" + from + ":" + to, key -> new BandPlan(n, from, to));
+    }
+
+    // Combine packed bins k and m - k into bins k and m - k of the real spectrum
+    private static void unpackPair(double[] re, double[] im, double[] cos, double[] sin, int k, int m) {
+        int j = m - k;
+        double ar = re[k], ai = im[k];
+        double br = re[j], bi = im[j];
+
+        double er = 0.5 * (ar + br);
+        double ei = 0.5 * (ai - bi);
+        double or = 0.5 * (ai + bi);
+        double oi = -0.5 * (ar - br);
+
+        double tr = cos[k] * or - sin[k] * oi;
+        double ti = cos[k] * oi + sin[k] * or;
+
+        re[k] = er + tr;
+        im[k] = ei + ti;
+        if (j != k) {
+            re[j] = er - tr;
+            im[j] = -(ei - ti);
+        }
+    }
+
+    // In-place FFT over the first n entries of re[] and im[]
+    private static void transform(double[] re, double[] im, int n) {
+        transform(re, im, n, null);
+    }
+
+    // In-place FFT over the first n entries of re[] and im[]. When runs is not
+    // null, runs[s] lists the [start, end) ranges of butterfly indices to evaluate
+    // in stage s (null for a full stage); all other butterflies are skipped.
+    private static void transform(double[] re, double[] im, int n, int[][] runs) {
+        if (n == 1) return;
+        Tables tables = tables(n);
+
+        // Reorder the input so the butterflies can run in place
+        int[] rev = tables.bitReverse;
+        for (int i = 0; i < n; i++) {
+            int j = rev[i];
+            if (i < j) {
+                double tr = re[i]; re[i] = re[j]; re[j] = tr;
+                double ti = im[i]; im[i] = im[j]; im[j] = ti;
+            }
+        }
+
+        // Combine sub-transforms of size half into transforms of size 2 * half
+        double[] cos = tables.cos;
+        double[] sin = tables.sin;
+        int stage = 0;
+        for (int half = 1; half < n; half <<= 1, stage++) {
+            int stride = n / (half << 1);
+            int[] stageRuns = runs == null ? null : runs[stage];
+            if (VECTOR_LANES > 0 && half >= VECTOR_LANES) {
+                // Wide stages: run each block's butterflies across SIMD lanes
+                double[] stageCos = tables.stageCos;
+                double[] stageSin = tables.stageSin;
+                if (stageRuns == null) {
+                    for (int start = 0; start < n; start += half << 1) {
+                        VectorFFT.butterflies(re, im, stageCos, stageSin, start, half, 0, half);
+                    }
+                } else {
+                    for (int r = 0; r < stageRuns.length; r += 2) {
+                        for (int start = 0; start < n; start += half << 1) {
+                            VectorFFT.butterflies(re, im, stageCos, stageSin, start, half,
+                                    stageRuns[r], stageRuns[r + 1]);
+                        }
+                    }
+                }
+            } else if (stageRuns == null) {
+                for (int start = 0; start < n; start += half << 1) {
+                    butterflies(re, im, cos, sin, start, half, stride, 0, half);
+                }
+            } else {
+                for (int r = 0; r < stageRuns.length; r += 2) {
+                    for (int start = 0; start < n; start += half << 1) {
+                        butterflies(re, im, cos, sin, start, half, stride, stageRuns[r], stageRuns[r + 1]);
+                    }
+                }
+            }
+        }
+    }
+
+    // Butterflies from through to-1 of the block beginning at start
+    private static void butterflies(double[] re, double[] im, double[] cos, double[] sin,
+                                    int start, int half, int stride, int from, int to) {
+        for (int k = from; k < to; k++) {
+            double wr = cos[k * stride];
+            double wi = sin[k * stride];
+            int a = start + k;
+            int b = a + half;
+            double tr = wr * re[b] - wi * im[b];
+            double ti = wr * im[b] + wi * re[b];
+            re[b] = re[a] - tr;
+            im[b] = im[a] - ti;
+            re[a] = re[a] + tr;
+            im[a] = im[a] + ti;
+        }
+    }
+
+    /**
+     * Finds the bin in from..to-1 with the largest magnitude.
+     * Since log(|X| + 1) grows with |X|, comparing squared magnitudes selects the
+     * same bin as comparing log magnitudes. Ties go to the lowest bin.
+     * @return The peak bin, or -1 if every bin in the range has zero magnitude
+     */
+    public static int peakBin(double[] re, double[] im, int from, int to) {
+        if (VECTOR_LANES > 0 && to - from >= VECTOR_LANES) {
+            return VectorFFT.peakBin(re, im, from, to);
+        }
+        int peak = -1;
+        double maxPower = 0;
+        for (int i = from; i < to; i++) {
+            double power = re[i] * re[i] + im[i] * im[i];
+            if (power > maxPower) {
+                maxPower = power;
+                peak = i;
+            }
+        }
+        return peak;
+    }
+
+    // Use the SIMD kernels only when jdk.incubator.vector is present and not disabled
+    private static int vectorLanes() {
+        if (!Boolean.parseBoolean(System.getProperty("saudentify.vector", "true"))) {
+            return 0;
+        }
+        if (ModuleLayer.boot().findModule("jdk.incubator.vector").isEmpty()) {
+            return 0;
+        }
+        try {
+            int lanes = VectorFFT.lanes();
+            return lanes > 1 ? lanes : 0;
+        } catch (LinkageError e) {
+            return 0;
+        }
+    }
+
+    // Look up (or build on first use) the tables for a transform of size n
+    static Tables tables(int n) {
+        if (n < 1 || (n & (n - 1)) != 0) {
             throw new IllegalArgumentException("Length is not a power of 2");
         }
-        // FFT of even terms
-        Complex[] even = new Complex[n/2];
-        for (int k = 0; k < n/2; k++) {
-            even[k] = x[2*k];
+        return TABLES.computeIfAbsent(n, Tables::new);
+    }
+
+    // Precomputed permutation and twiddle factors for one transform size
+    static final class Tables {
+        final int size;
+        final int[] bitReverse;
+        // Twiddle k is cos(-2 * pi * k / n) + i * sin(-2 * pi * k / n), for k < n / 2
+        final double[] cos;
+        final double[] sin;
+        // The twiddles of the stage with span half, laid out contiguously from index half
+        final double[] stageCos;
+        final double[] stageSin;
+
+        Tables(int n) {
+            this.size = n;
+            this.bitReverse = new int[n];
+            int bits = Integer.numberOfTrailingZeros(n);
+            for (int i = 0; i < n; i++) {
+                bitReverse[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+
+            this.cos = new double[Math.max(1, n / 2)];
+            this.sin = new double[Math.max(1, n / 2)];
+            for (int k = 0; k < n / 2; k++) {
+                double kth = -2 * k * Math.PI / n;
+                cos[k] = Math.cos(kth);
+                sin[k] = Math.sin(kth);
+            }
+
+            this.stageCos = new double[n];
+            this.stageSin = new double[n];
+            for (int half = 1; half < n; half <<= 1) {
+                int stride = n / (half << 1);
+                for (int k = 0; k < half; k++) {
+                    stageCos[half + k] = cos[k * stride];
+                    stageSin[half + k] = sin[k * stride];
+                }
+            }
         }
-        Complex[] q = fft(even);
+    }
+
+    /**
+     * Pruning plan for a real-input FFT that only needs bins from..to-1.
+     * After the last stage of the packed n/2-point transform, output q depends
+     * on the value at position p of the stage with butterfly span half only if
+     * q % half == p % half, so butterflies whose index is not one of those
+     * residues are skipped.
+     */
+    public static final class BandPlan {
+        final int size;
+        final int from;
+        final int to;
+        // runs[stage] = {start0, end0, start1, end1, ...} butterfly indices to evaluate,
+        // or null when the whole stage is needed
+        final int[][] runs;
+        // {start0, end0, ...} values of k whose unpacked pair (k, m - k) touches the band
+        final int[] pairs;
 
-        // FFT of odd terms
-        Complex[] odd  = new Complex[n/2];
-        for (int k = 0; k < n/2; k++) {
-            odd[k] = x[2*k + 1];
+        BandPlan(int n, int from, int to) {
+            this.size = n;
+            this.from = from;
+            this.to = to;
+            int m = n / 2;
+
+            // Packed outputs needed to unpack the band: k and m - k for each bin k
+            boolean[] needed = new boolean[m];
+            boolean[] pairNeeded = new boolean[m / 2 + 1];
+            for (int k = from; k < to; k++) {
+                needed[k % m] = true;
+                needed[(m - k) % m] = true;
+                int pair = Math.min(k, m - k);
+                if (pair >= 1) pairNeeded[pair] = true;
+            }
+            this.pairs = toRuns(pairNeeded, 1, pairNeeded.length);
+
+            int stages = Integer.numberOfTrailingZeros(Math.max(1, m));
+            this.runs = new int[stages][];
+            int stage = 0;
+            for (int half = 1; half < m; half <<= 1, stage++) {
+                boolean[] residues = new boolean[half];
+                for (int q = 0; q < m; q++) {
+                    if (needed[q]) residues[q % half] = true;
+                }
+                int[] stageRuns = toRuns(residues, 0, half);
+                boolean full = stageRuns.length == 2 && stageRuns[0] == 0 && stageRuns[1] == half;
+                runs[stage] = full ? null : stageRuns;
+            }
         }
-        Complex[] r = fft(odd);
 
-        // Combine
-        Complex[] y = new Complex[n];
-        for (int k = 0; k < n/2; k++) {
-            double kth = -2 * k * Math.PI / n;
-            Complex wk = new Complex(Math.cos(kth), Math.sin(kth));
-            y[k]       = q[k].plus(wk.times(r[k]));
-            y[k + n/2] = q[k].minus(wk.times(r[k]));
+        // Convert a mask into {start, end} pairs of consecutive true entries
+        private static int[] toRuns(boolean[] mask, int lo, int hi) {
+            int[] out = new int[hi - lo + 1];
+            int count = 0;
+            int i = lo;
+            while (i < hi) {
+                if (!mask[i]) { i++; continue; }
+                int start = i;
+                while (i < hi && mask[i]) i++;
+                out[count++] = start;
+                out[count++] = i;
+            }
+            return Arrays.copyOf(out, count);
         }
-        return y;
     }
 }
@@ -0,0 +1,95 @@
+import java.util.concurrent.atomic.LongAdder;
+
+// Index segment behind a BloomFilter: find() only searches the segment when the
+// filter says the hash may be present, so most absent hashes (noise in a
+// microphone recording) cost one cache line instead of a search of a large,
+// possibly off-heap or memory-mapped key array. Works with any backend.
+// Lookups are not counted here: a segment cannot tell a query from the writer's
+// stop-list checks, or a hash absent from the index from one held by another
+// segment, so SegmentedIndex.Snapshot records query misses in Stats.
+public class FilteredSegment implements IndexSegment {
+    private final IndexSegment segment;
+    private final BloomFilter filter;
+
+    public FilteredSegment(IndexSegment segment, BloomFilter filter) {
+        this.segment = segment;
+        this.filter = filter;
+    }
+
+    public BloomFilter getFilter() {
+        return filter;
+    }
+
+    // False if the segment certainly does not hold hash
+    public boolean mightContain(long hash) {
+        return filter.mightContain(hash);
+    }
+
+    @Override
+    public int find(long hash) {
+        return filter.mightContain(hash) ? segment.find(hash) : -1;
+    }
+
+    @Override
+    public int size() {
+        return segment.size();
+    }
+
+    @Override
+    public long postingCount() {
+        return segment.postingCount();
+    }
+
+    @Override
+    public long key(int i) {
+        return segment.key(i);
+    }
+
+    @Override
+    public int postingCountAt(int i) {
+        return segment.postingCountAt(i);
+    }
+
+    @Override
+    public void forEachAt(int i, PostingVisitor visitor) {
+        segment.forEachAt(i, visitor);
+    }
+
+    @Override
+    public void close() {
+        segment.close();
+    }
+
+    // Outcomes of query lookups of hashes absent from an index, over all its segments
+    public static class Stats {
+        // Absent hashes every filter ruled out
+        private final LongAdder rejected = new LongAdder();
+        // Absent hashes at least one filter let through to a search
+        private final LongAdder falsePositives = new LongAdder();
+
+        void recordAbsent(boolean falsePositive) {
+            (falsePositive ? falsePositives : rejected).increment();
+        }
+
+        public long getRejected() {
+            return rejected.sum();
+        }
+
+        public long getFalsePositives() {
+            return falsePositives.sum();
+        }
+
+        // Observed share of absent hashes the filter let through, or NaN before any
+        public double getFalsePositiveRate() {
+            long fp = falsePositives.sum();
+            long total = fp + rejected.sum();
+            return total == 0 ? Double.NaN : (double) fp / total;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("Prefilter: %d absent hashes rejected, %d false positives (%.2f%%)",
+                    getRejected(), getFalsePositives(), 100 * getFalsePositiveRate());
+        }
+    }
+}
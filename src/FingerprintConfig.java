@@ -0,0 +1,159 @@
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// Settings that determine which hashes the Harvester produces. Ingest and query
+// must use the same values, so they are stored with each database.
+// FFT and hop sizes are given in samples at CAPTURE_RATE; when the audio is
+// analysed at a lower sample rate they shrink by the same factor, so each
+// frame still spans the same time and each bin the same frequencies.
+public class FingerprintConfig {
+    // How hashes are formed from each spectrum
+    public enum HashMode {
+        // One hash per frame from the strongest bin of each of four bands
+        BANDS,
+        // 32-bit hashes from pairs of spectral peaks, several per frame
+        CONSTELLATION
+    }
+
+    // Rate at which files are decoded and the microphone is recorded
+    public static final int CAPTURE_RATE = 44100;
+
+    // The original behaviour: back-to-back 4096-sample rectangular frames at 44.1 kHz
+    public static final FingerprintConfig LEGACY =
+            new FingerprintConfig(Harvester.CHUNK_SIZE, Harvester.CHUNK_SIZE, Window.RECTANGULAR, CAPTURE_RATE);
+
+    private final int fftSize;
+    private final int hopSize;
+    private final Window window;
+    private final int sampleRate;
+    private final HashMode hashMode;
+
+    public FingerprintConfig(int fftSize, int hopSize, Window window) {
+        this(fftSize, hopSize, window, CAPTURE_RATE);
+    }
+
+    /**
+     * @param fftSize Samples per frame at CAPTURE_RATE
+     * @param hopSize Samples between frame starts at CAPTURE_RATE
+     * @param window Window applied to each frame
+     * @param sampleRate Rate the audio is downsampled to before analysis; CAPTURE_RATE
+     *                   divided by a power of 2 (44100, 22050 or 11025)
+     */
+    public FingerprintConfig(int fftSize, int hopSize, Window window, int sampleRate) {
+        this(fftSize, hopSize, window, sampleRate, HashMode.BANDS);
+    }
+
+    /**
+     * @param hashMode How hashes are formed from each spectrum
+     */
+    public FingerprintConfig(int fftSize, int hopSize, Window window, int sampleRate, HashMode hashMode) {
+        if (fftSize < 256 || (fftSize & (fftSize - 1)) != 0) {
+            throw new IllegalArgumentException("FFT size must be a power of 2 of at least 256: " + fftSize);
+        }
+        if (hopSize < 1 || hopSize > fftSize) {
+            throw new IllegalArgumentException("Hop size must be between 1 and the FFT size: " + hopSize);
+        }
+        int factor = sampleRate > 0 && CAPTURE_RATE % sampleRate == 0 ? CAPTURE_RATE / sampleRate : 0;
+        if (factor == 0 || (factor & (factor - 1)) != 0) {
+            throw new IllegalArgumentException("Sample rate must be " + CAPTURE_RATE
+                    + " divided by a power of 2: " + sampleRate);
+        }
+        // The fingerprinted band (up to RANGE's top bin) must stay below the new Nyquist frequency
+        if ((long) Harvester.RANGE[Harvester.RANGE.length - 1] * 2 * factor >= Harvester.CHUNK_SIZE) {
+            throw new IllegalArgumentException("Sample rate " + sampleRate + " is too low for the fingerprinted band");
+        }
+        if (fftSize / factor < 256 || hopSize % factor != 0) {
+            throw new IllegalArgumentException("FFT and hop sizes must be multiples of the decimation factor "
+                    + factor + " and leave frames of at least 256 samples");
+        }
+        this.fftSize = fftSize;
+        this.hopSize = hopSize;
+        this.window = window;
+        this.sampleRate = sampleRate;
+        this.hashMode = hashMode;
+    }
+
+    /**
+     * Builds a configuration from -Dsaudentify.fftSize, -Dsaudentify.hopSize,
+     * -Dsaudentify.window, -Dsaudentify.sampleRate and -Dsaudentify.hashMode,
+     * using the legacy value for anything not set.
+     * Only used when a new database is created.
+     */
+    public static FingerprintConfig fromSystemProperties() {
+        Map<String, String> values = new LinkedHashMap<>();
+        values.put("fft_size", System.getProperty("saudentify.fftSize"));
+        values.put("hop_size", System.getProperty("saudentify.hopSize"));
+        values.put("window", System.getProperty("saudentify.window"));
+        values.put("sample_rate", System.getProperty("saudentify.sampleRate"));
+        values.put("hash_mode", System.getProperty("saudentify.hashMode"));
+        return fromSettings(values);
+    }
+
+    // Parse stored settings; missing keys fall back to the legacy values
+    public static FingerprintConfig fromSettings(Map<String, String> settings) {
+        int fftSize = parseInt(settings.get("fft_size"), LEGACY.fftSize);
+        int hopSize = parseInt(settings.get("hop_size"), fftSize == LEGACY.fftSize ? LEGACY.hopSize : fftSize);
+        String window = settings.get("window");
+        int sampleRate = parseInt(settings.get("sample_rate"), LEGACY.sampleRate);
+        String hashMode = settings.get("hash_mode");
+        return new FingerprintConfig(fftSize, hopSize,
+                window == null ? LEGACY.window : Window.valueOf(window.trim().toUpperCase()), sampleRate,
+                hashMode == null ? LEGACY.hashMode : HashMode.valueOf(hashMode.trim().toUpperCase()));
+    }
+
+    // Settings to store with the database
+    public Map<String, String> toSettings() {
+        Map<String, String> settings = new LinkedHashMap<>();
+        settings.put("fft_size", Integer.toString(fftSize));
+        settings.put("hop_size", Integer.toString(hopSize));
+        settings.put("window", window.name());
+        settings.put("sample_rate", Integer.toString(sampleRate));
+        settings.put("hash_mode", hashMode.name());
+        return settings;
+    }
+
+    private static int parseInt(String value, int defaultValue) {
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public int getFftSize() {
+        return fftSize;
+    }
+
+    public int getHopSize() {
+        return hopSize;
+    }
+
+    public Window getWindow() {
+        return window;
+    }
+
+    public int getSampleRate() {
+        return sampleRate;
+    }
+
+    public HashMode getHashMode() {
+        return hashMode;
+    }
+
+    // Input samples per analysed sample
+    public int getDecimation() {
+        return CAPTURE_RATE / sampleRate;
+    }
+
+    // Samples per frame at the analysis rate
+    public int getFrameSize() {
+        return fftSize / getDecimation();
+    }
+
+    // Samples between frame starts at the analysis rate
+    public int getFrameHop() {
+        return hopSize / getDecimation();
+    }
+
+    @Override
+    public String toString() {
+        return "FFT " + fftSize + ", hop " + hopSize + ", " + window.name().toLowerCase() + " window, "
+                + sampleRate + " Hz, " + hashMode.name().toLowerCase() + " hashes";
+    }
+}
@@ -0,0 +1,62 @@
+import java.util.Arrays;
+
+// Growable list of fingerprints stored as parallel primitive arrays:
+// hashes[i] was produced at time index times[i]. Used from the Harvester
+// through the matcher and the database without boxing any hash.
+public class FingerprintList implements Harvester.HashSink {
+    private long[] hashes;
+    private int[] times;
+    private int size;
+
+    public FingerprintList() {
+        this(64);
+    }
+
+    public FingerprintList(int initialCapacity) {
+        int capacity = Math.max(1, initialCapacity);
+        this.hashes = new long[capacity];
+        this.times = new int[capacity];
+    }
+
+    @Override
+    public void accept(int time, long hash) {
+        add(time, hash);
+    }
+
+    public void add(int time, long hash) {
+        if (size == hashes.length) {
+            int capacity = hashes.length * 2;
+            hashes = Arrays.copyOf(hashes, capacity);
+            times = Arrays.copyOf(times, capacity);
+        }
+        hashes[size] = hash;
+        times[size] = time;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public long hash(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return hashes[index];
+    }
+
+    public int time(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("Index " + index + " out of bounds for size " + size);
+        }
+        return times[index];
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
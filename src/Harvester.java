@@ -1,59 +1,264 @@
-// Harvester.java
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.lang.Math;
 
 public class Harvester {
     public static final int CHUNK_SIZE = 4096;
     // Frequency ranges (in FFT bin indices) used for fingerprinting.
     // Here we assume an upper limit of 300 for demonstration.
+    // The bins are for a CHUNK_SIZE transform; other FFT sizes scale them.
     public static final int[] RANGE = new int[] {40, 80, 120, 180, 300};
 
-    // Process the raw audio data and return a list of fingerprint hashes.
-    public List<Long> processAudio(byte[] audio) {
-        int totalSize = audio.length;
-        int amountPossible = totalSize / CHUNK_SIZE;
-        List<Long> fingerprints = new ArrayList<>();
-
-        for (int t = 0; t < amountPossible; t++) {
-            // Create a complex array from one chunk.
-            Complex[] complex = new Complex[CHUNK_SIZE];
-            for (int i = 0; i < CHUNK_SIZE; i++) {
-                // Note: byte is signed; cast to int for sample value.
-                int sample = audio[t * CHUNK_SIZE + i];
-                complex[i] = new Complex((double) sample, 0);
+    // Frames handled by one fork/join task before it stops splitting
+    private static final int CHUNKS_PER_TASK = 16;
+    // Frames read from a stream per parallel pass
+    private static final int CHUNKS_PER_BLOCK = 256;
+
+    private final FingerprintConfig config;
+    // Frame length and hop between frame starts at the analysis rate,
+    // and window coefficients (null for rectangular)
+    private final int frameSize;
+    private final int hopSize;
+    private final double[] window;
+    // Input samples per analysed sample (1 when analysing at the capture rate)
+    private final int decimation;
+    // RANGE rescaled to this FFT size
+    private final int[] range;
+    // Only the bins covered by range are evaluated by the FFT.
+    private final FFT.BandPlan band;
+    // Whether hashes come from peak pairs (see Constellation) rather than per-frame band maxima
+    private final boolean constellation;
+    // First bin and number of bins of the fingerprinted band
+    private final int bandStart;
+    private final int bandWidth;
+
+    // One set of frame and FFT buffers per thread, reused for every frame and every call
+    private final ThreadLocal<Scratch> scratch = ThreadLocal.withInitial(Scratch::new);
+
+    // Pool used to fingerprint the frames of one track in parallel, or null to run sequentially
+    private final ForkJoinPool pool;
+
+    // Receives fingerprint hashes in time order as they are produced.
+    public interface HashSink {
+        void accept(int time, long hash);
+    }
+
+    public Harvester() {
+        this(FingerprintConfig.LEGACY, null);
+    }
+
+    public Harvester(ForkJoinPool pool) {
+        this(FingerprintConfig.LEGACY, pool);
+    }
+
+    /**
+     * @param config Frame size, hop size and window of the short-time Fourier transform,
+     *               and the way hashes are formed
+     * @param pool Pool used to split each track's frames across cores, or null
+     *             to process frames one after another on the calling thread
+     */
+    public Harvester(FingerprintConfig config, ForkJoinPool pool) {
+        this.config = config;
+        this.frameSize = config.getFrameSize();
+        this.hopSize = config.getFrameHop();
+        this.decimation = config.getDecimation();
+        this.window = config.getWindow().table(frameSize);
+        // Downsampling keeps the bin width, so the bins only depend on the FFT size at the capture rate
+        this.range = new int[RANGE.length];
+        for (int r = 0; r < RANGE.length; r++) {
+            range[r] = (int) ((long) RANGE[r] * config.getFftSize() / CHUNK_SIZE);
+        }
+        int end = Math.min(range[range.length - 1], frameSize / 2);
+        this.bandStart = Math.min(range[0], end - 1);
+        this.bandWidth = end - bandStart;
+        this.band = FFT.bandPlan(frameSize, bandStart, end);
+        this.constellation = config.getHashMode() == FingerprintConfig.HashMode.CONSTELLATION;
+        if (constellation && bandWidth > Constellation.MAX_BINS) {
+            throw new IllegalArgumentException("FFT size " + config.getFftSize() + " is too large for constellation hashes");
+        }
+        this.pool = pool;
+    }
+
+    public FingerprintConfig getConfig() {
+        return config;
+    }
+
+    // Process the raw audio data and return the fingerprint hashes with their frame index.
+    public FingerprintList processAudio(byte[] audio) {
+        FingerprintList fingerprints = new FingerprintList(frameCount(audio.length / decimation));
+        try {
+            processStream(new ByteArrayInputStream(audio), fingerprints);
+        } catch (IOException e) {
+            // A byte array stream never fails
+            throw new UncheckedIOException(e);
+        }
+        return fingerprints;
+    }
+
+    /**
+     * Fingerprints 8-bit signed mono audio read from a stream, one frame at a time.
+     * Only a fixed-size buffer of audio is held in memory, so heap use does not depend
+     * on the length of the stream. A trailing partial frame is ignored.
+     * When analysing below the capture rate, the samples are low-pass filtered and
+     * downsampled as they are read.
+     * With a pool, a fixed block of frames is read at a time and fingerprinted in
+     * parallel; hashes are still emitted in time order.
+     * @param in Stream of 8-bit signed samples at the capture rate; it is read to the end but not closed
+     * @param sink Receives each hash along with its frame index (the anchor frame for peak pairs)
+     * @return Number of frames analysed
+     */
+    public int processStream(InputStream in, HashSink sink) throws IOException {
+        Scratch scratch = this.scratch.get();
+        scratch.decimator.reset();
+        if (scratch.peaks != null) {
+            scratch.peaks.reset();
+        }
+        if (pool == null) {
+            return processStream(in, sink, scratch, scratch.frame, 1);
+        }
+        if (scratch.block == null) {
+            scratch.block = new double[(CHUNKS_PER_BLOCK - 1) * hopSize + frameSize];
+            if (constellation) {
+                scratch.blockPowers = new double[CHUNKS_PER_BLOCK * bandWidth];
+            } else {
+                scratch.blockHashes = new long[CHUNKS_PER_BLOCK];
             }
-            // Perform FFT on the chunk.
-            Complex[] fftResult = FFT.fft(complex);
-
-            // Extract key points for fingerprinting.
-            // For each of the four ranges, find the frequency bin with the highest magnitude.
-            int[] keyPoints = new int[4];
-            double[] maxMag = new double[4];
-            Arrays.fill(maxMag, 0);
-
-            // Only process bins from index 40 up to 300 (or the available half-spectrum).
-            int start = RANGE[0];
-            int end = Math.min(RANGE[RANGE.length - 1], fftResult.length / 2);
-            for (int i = start; i < end; i++) {
-                double mag = Math.log(fftResult[i].abs() + 1);
-                // Determine in which range this bin falls.
-                int rangeIndex = 0;
-                for (int r = 0; r < RANGE.length - 1; r++) {
-                    if (i >= RANGE[r] && i < RANGE[r+1]) {
-                        rangeIndex = r;
-                        break;
-                    }
+        }
+        return processStream(in, sink, scratch, scratch.block, CHUNKS_PER_BLOCK);
+    }
+
+    // Read up to maxFrames frames at a time into block[]. The tail that overlaps
+    // the next block's first frame is moved to the front before reading more.
+    private int processStream(InputStream in, HashSink sink, Scratch scratch,
+                              double[] block, int maxFrames) throws IOException {
+        boolean parallel = maxFrames > 1;
+        long[] hashes = parallel ? scratch.blockHashes : null;
+        double[] powers = parallel ? scratch.blockPowers : null;
+        byte[] input = scratch.input;
+        int filled = 0;
+        int t = 0;
+        boolean ended = false;
+        while (true) {
+            // Top up the block with analysis-rate samples
+            while (filled < block.length && !ended) {
+                int wanted = Math.min(input.length, (block.length - filled) * decimation);
+                int bytesRead = readFully(in, input, wanted);
+                ended = bytesRead < wanted;
+                filled += decimation == 1
+                        ? toSamples(input, bytesRead, block, filled)
+                        : scratch.decimator.process(input, bytesRead, block, filled);
+            }
+            int frames = frameCount(filled);
+            if (frames == 0) {
+                if (constellation) {
+                    scratch.peaks.flush(sink);
+                }
+                return t;
+            }
+            if (!parallel) {
+                transformFrame(block, 0, scratch);
+                if (constellation) {
+                    bandPowers(scratch, scratch.powers, 0);
+                    scratch.peaks.push(scratch.powers, 0, sink);
+                    t++;
+                } else {
+                    sink.accept(t++, bandHash(scratch));
                 }
-                if (mag > maxMag[rangeIndex]) {
-                    maxMag[rangeIndex] = mag;
-                    keyPoints[rangeIndex] = i;
+            } else {
+                pool.invoke(new ChunkTask(block, hashes, powers, 0, frames));
+                for (int i = 0; i < frames; i++) {
+                    if (constellation) {
+                        scratch.peaks.push(powers, i * bandWidth, sink);
+                        t++;
+                    } else {
+                        sink.accept(t++, hashes[i]);
+                    }
                 }
             }
-            // Create a hash from the 4 key points.
-            long hash = hashPoints(keyPoints);
-            fingerprints.add(hash);
+            int consumed = frames * hopSize;
+            System.arraycopy(block, consumed, block, 0, filled - consumed);
+            filled -= consumed;
         }
-        return fingerprints;
+    }
+
+    // Number of whole frames in the given number of samples
+    private int frameCount(int samples) {
+        return samples < frameSize ? 0 : (samples - frameSize) / hopSize + 1;
+    }
+
+    // Copy 8-bit samples into the block unchanged; returns the number copied
+    private static int toSamples(byte[] input, int count, double[] block, int offset) {
+        for (int i = 0; i < count; i++) {
+            // Note: byte is signed; cast to int for sample value.
+            block[offset + i] = input[i];
+        }
+        return count;
+    }
+
+    // Read until length bytes are in the buffer or the stream ends; returns the bytes read
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int filled = 0;
+        while (filled < length) {
+            int bytesRead = in.read(buffer, filled, length - filled);
+            if (bytesRead == -1) {
+                break;
+            }
+            filled += bytesRead;
+        }
+        return filled;
+    }
+
+    // Window and transform the frame starting at offset; the band's bins are left in scratch.re/im.
+    private void transformFrame(double[] audio, int offset, Scratch scratch) {
+        double[] samples = scratch.samples;
+
+        // Load one frame of real samples, windowed if configured.
+        if (window == null) {
+            System.arraycopy(audio, offset, samples, 0, frameSize);
+        } else {
+            for (int i = 0; i < frameSize; i++) {
+                samples[i] = audio[offset + i] * window[i];
+            }
+        }
+        // Perform a real-input FFT on the frame, limited to the fingerprinted band.
+        FFT.realFft(samples, scratch.re, scratch.im, band);
+    }
+
+    // Squared magnitudes of the band's bins, written to out[] from outOffset
+    private void bandPowers(Scratch scratch, double[] out, int outOffset) {
+        double[] re = scratch.re;
+        double[] im = scratch.im;
+        for (int i = 0; i < bandWidth; i++) {
+            int bin = bandStart + i;
+            out[outOffset + i] = re[bin] * re[bin] + im[bin] * im[bin];
+        }
+    }
+
+    // Compute the hash of the transformed frame from the strongest bin of each range.
+    private long bandHash(Scratch scratch) {
+        double[] re = scratch.re;
+        double[] im = scratch.im;
+
+        // Extract key points for fingerprinting.
+        // For each of the four ranges, find the frequency bin with the highest magnitude.
+        int[] keyPoints = scratch.keyPoints;
+        Arrays.fill(keyPoints, 0);
+
+        // Only process bins from index 40 up to 300 (or the available half-spectrum).
+        int end = Math.min(range[range.length - 1], frameSize / 2);
+        for (int r = 0; r < range.length - 1 && range[r] < end; r++) {
+            int peak = FFT.peakBin(re, im, range[r], Math.min(range[r + 1], end));
+            if (peak >= 0) {
+                keyPoints[r] = peak;
+            }
+        }
+        // Create a hash from the 4 key points.
+        return hashPoints(keyPoints);
     }
 
     // Using a simple damping factor as in the guide.
@@ -72,4 +277,61 @@ public class Harvester {
                 (p2 - (p2 % FUZ_FACTOR)) * 100 +
                 (p1 - (p1 % FUZ_FACTOR));
     }
+
+    // Analyses frames [from, to) of audio, splitting the range across the pool.
+    // Each frame's band hash goes to hashes[], or its band powers to powers[]
+    // for peak-pair hashing. Each worker uses its own thread's scratch buffers.
+    private final class ChunkTask extends RecursiveAction {
+        private final double[] audio;
+        private final long[] hashes;
+        private final double[] powers;
+        private final int from;
+        private final int to;
+
+        ChunkTask(double[] audio, long[] hashes, double[] powers, int from, int to) {
+            this.audio = audio;
+            this.hashes = hashes;
+            this.powers = powers;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= CHUNKS_PER_TASK) {
+                Scratch local = scratch.get();
+                for (int t = from; t < to; t++) {
+                    transformFrame(audio, t * hopSize, local);
+                    if (powers != null) {
+                        bandPowers(local, powers, t * bandWidth);
+                    } else {
+                        hashes[t] = bandHash(local);
+                    }
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new ChunkTask(audio, hashes, powers, from, mid),
+                    new ChunkTask(audio, hashes, powers, mid, to));
+        }
+    }
+
+    // Per-thread working buffers for one frame
+    private final class Scratch {
+        final byte[] input = new byte[CHUNK_SIZE];
+        final Decimator decimator = new Decimator(decimation);
+        final double[] frame = new double[frameSize];
+        final double[] samples = new double[frameSize];
+        final double[] re = new double[frameSize / 2 + 1];
+        final double[] im = new double[frameSize / 2 + 1];
+        final int[] keyPoints = new int[4];
+        // Peak-pair state and one frame of band powers, only for constellation hashing
+        final Constellation peaks = constellation ? new Constellation(bandWidth) : null;
+        final double[] powers = constellation ? new double[bandWidth] : null;
+        // A block of frames and their hashes or band powers for parallel passes. Allocated
+        // on the first parallel call, as pool workers only need the per-frame buffers.
+        double[] block;
+        long[] blockHashes;
+        double[] blockPowers;
+    }
 }
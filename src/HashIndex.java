@@ -0,0 +1,158 @@
+import java.util.Arrays;
+
+// Inverted index from fingerprint hash to postings, stored in primitive arrays.
+// An open-addressing table maps each hash to the head of a chain of postings.
+// Postings live in one contiguous array: each packs (songId, time) into a long,
+// and next[] links postings of the same hash in insertion order.
+public class HashIndex {
+    private static final int EMPTY = -1;
+    // Grow the table once it is this full
+    private static final double MAX_LOAD = 0.6;
+
+    // Open-addressing table; heads[slot] == EMPTY marks a free slot
+    private long[] keys;
+    private int[] heads;
+    private int[] tails;
+    private int[] counts;
+    private int keyCount;
+
+    // Postings and the chain links between them
+    private long[] postings;
+    private int[] next;
+    private int postingCount;
+
+    public HashIndex() {
+        this(1024);
+    }
+
+    // The posting arrays start at expectedPostings; the hash table grows as keys arrive
+    public HashIndex(int expectedPostings) {
+        allocateTable(1024);
+        this.postings = new long[Math.max(16, expectedPostings)];
+        this.next = new int[postings.length];
+    }
+
+    // Add one occurrence of hash at the given time in a song.
+    public void add(long hash, int songId, int time) {
+        if (keyCount + 1 > keys.length * MAX_LOAD) {
+            rehash(keys.length * 2);
+        }
+        if (postingCount == postings.length) {
+            int capacity = postings.length * 2;
+            postings = Arrays.copyOf(postings, capacity);
+            next = Arrays.copyOf(next, capacity);
+        }
+
+        int p = postingCount++;
+        postings[p] = pack(songId, time);
+        next[p] = EMPTY;
+
+        int slot = find(hash);
+        if (heads[slot] == EMPTY) {
+            keys[slot] = hash;
+            heads[slot] = p;
+            keyCount++;
+        } else {
+            next[tails[slot]] = p;
+        }
+        tails[slot] = p;
+        counts[slot]++;
+    }
+
+    /**
+     * Calls the visitor for every posting of hash, in the order they were added.
+     */
+    public void forEach(long hash, PostingVisitor visitor) {
+        int slot = find(hash);
+        for (int p = heads[slot]; p != EMPTY; p = next[p]) {
+            long posting = postings[p];
+            visitor.visit(songId(posting), time(posting));
+        }
+    }
+
+    // Number of postings for hash (0 if it is not in the index)
+    public int postingCount(long hash) {
+        int slot = find(hash);
+        return heads[slot] == EMPTY ? 0 : counts[slot];
+    }
+
+    // The distinct hashes, in no particular order
+    public long[] keys() {
+        long[] out = new long[keyCount];
+        int n = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (heads[slot] != EMPTY) {
+                out[n++] = keys[slot];
+            }
+        }
+        return out;
+    }
+
+    // Number of distinct hashes
+    public int size() {
+        return keyCount;
+    }
+
+    // Total number of postings
+    public int postingCount() {
+        return postingCount;
+    }
+
+    static long pack(int songId, int time) {
+        return ((long) songId << 32) | (time & 0xFFFFFFFFL);
+    }
+
+    static int songId(long posting) {
+        return (int) (posting >>> 32);
+    }
+
+    static int time(long posting) {
+        return (int) posting;
+    }
+
+    // Spread the bits of a hash so that structured values (such as the decimal-packed
+    // band hashes) do not cluster in the table
+    static long mix(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return hash;
+    }
+
+    // Slot holding hash, or the free slot where it would go
+    private int find(long hash) {
+        int mask = keys.length - 1;
+        int slot = (int) mix(hash) & mask;
+        while (heads[slot] != EMPTY && keys[slot] != hash) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    private void allocateTable(int capacity) {
+        keys = new long[capacity];
+        heads = new int[capacity];
+        tails = new int[capacity];
+        counts = new int[capacity];
+        Arrays.fill(heads, EMPTY);
+    }
+
+    private void rehash(int capacity) {
+        long[] oldKeys = keys;
+        int[] oldHeads = heads;
+        int[] oldTails = tails;
+        int[] oldCounts = counts;
+        allocateTable(capacity);
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldHeads[i] != EMPTY) {
+                int slot = find(oldKeys[i]);
+                keys[slot] = oldKeys[i];
+                heads[slot] = oldHeads[i];
+                tails[slot] = oldTails[i];
+                counts[slot] = oldCounts[i];
+            }
+        }
+    }
+}
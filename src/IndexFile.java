@@ -0,0 +1,172 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+// On-disk copy of a sealed index segment, opened with FileChannel.map so startup
+// only costs a header check and the OS page cache serves the postings.
+//
+// Layout (all values are longs in native byte order):
+//   header: magic, keyCount, postingCount, lastFingerprintId, lastRowDigest, shard, shardCount, 1 reserved
+//   keys[keyCount], offsets[keyCount + 1], postings[postingCount]
+// lastFingerprintId is the highest fingerprints.id covered by the file and
+// lastRowDigest identifies that row, so a file written for a different database
+// is rejected and rows added after the file was written can be loaded on top.
+// A sharded index writes one file per shard and records which shard it holds.
+public class IndexFile {
+    private static final long MAGIC = 0x5344464944583031L; // "SDFIDX01"
+    private static final int HEADER_LONGS = 8;
+    private static final long HEADER_BYTES = HEADER_LONGS * Long.BYTES;
+
+    private final IndexSegment segment;
+    private final long lastFingerprintId;
+    private final long lastRowDigest;
+    private final int shard;
+    private final int shardCount;
+
+    private IndexFile(IndexSegment segment, long lastFingerprintId, long lastRowDigest, int shard, int shardCount) {
+        this.segment = segment;
+        this.lastFingerprintId = lastFingerprintId;
+        this.lastRowDigest = lastRowDigest;
+        this.shard = shard;
+        this.shardCount = shardCount;
+    }
+
+    // The mapped segment; closing it unmaps the file
+    public IndexSegment getSegment() {
+        return segment;
+    }
+
+    public long getLastFingerprintId() {
+        return lastFingerprintId;
+    }
+
+    public long getLastRowDigest() {
+        return lastRowDigest;
+    }
+
+    public int getShard() {
+        return shard;
+    }
+
+    public int getShardCount() {
+        return shardCount;
+    }
+
+    /**
+     * Maps an index file read-only.
+     * @return The mapped file, or null if it is missing, truncated or not an index file
+     */
+    public static IndexFile open(Path path) {
+        if (!Files.isRegularFile(path)) {
+            return null;
+        }
+        Arena arena = Arena.ofShared();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < HEADER_BYTES) {
+                arena.close();
+                return null;
+            }
+            MemorySegment file = channel.map(FileChannel.MapMode.READ_ONLY, 0, size, arena);
+            long[] header = new long[HEADER_LONGS];
+            for (int i = 0; i < HEADER_LONGS; i++) {
+                header[i] = file.getAtIndex(ValueLayout.JAVA_LONG, i);
+            }
+            long keyCount = header[1];
+            long postingCount = header[2];
+            if (header[0] != MAGIC || keyCount < 0 || keyCount > Integer.MAX_VALUE || postingCount < 0
+                    || size != HEADER_BYTES + (2 * keyCount + 1 + postingCount) * Long.BYTES) {
+                arena.close();
+                return null;
+            }
+
+            long keysAt = HEADER_BYTES;
+            long offsetsAt = keysAt + keyCount * Long.BYTES;
+            long postingsAt = offsetsAt + (keyCount + 1) * Long.BYTES;
+            IndexSegment segment = new OffHeapSegment(arena, (int) keyCount, postingCount,
+                    file.asSlice(keysAt, keyCount * Long.BYTES),
+                    file.asSlice(offsetsAt, (keyCount + 1) * Long.BYTES),
+                    file.asSlice(postingsAt, postingCount * Long.BYTES));
+            // Files from before sharding leave the shard fields zero
+            return new IndexFile(segment, header[3], header[4], (int) header[5], (int) Math.max(1, header[6]));
+        } catch (IOException | RuntimeException e) {
+            arena.close();
+            System.err.println("Error opening index file " + path + ": " + e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Writes a segment to path. The data goes to a temporary file first and is then
+     * moved into place, so a crash never leaves a half-written index behind.
+     */
+    public static void write(Path path, IndexSegment segment, long lastFingerprintId, long lastRowDigest,
+                             int shard, int shardCount) throws IOException {
+        Path absolute = path.toAbsolutePath();
+        Path temp = Files.createTempFile(absolute.getParent(), absolute.getFileName().toString(), ".tmp");
+        try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 20).order(ByteOrder.nativeOrder());
+            int keyCount = segment.size();
+
+            long[] header = {MAGIC, keyCount, segment.postingCount(), lastFingerprintId, lastRowDigest,
+                    shard, shardCount, 0};
+            for (long value : header) {
+                put(channel, buffer, value);
+            }
+            for (int i = 0; i < keyCount; i++) {
+                put(channel, buffer, segment.key(i));
+            }
+            long start = 0;
+            for (int i = 0; i < keyCount; i++) {
+                put(channel, buffer, start);
+                start += segment.postingCountAt(i);
+            }
+            put(channel, buffer, start);
+            PostingVisitor writer = (songId, time) -> {
+                try {
+                    put(channel, buffer, HashIndex.pack(songId, time));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            };
+            try {
+                for (int i = 0; i < keyCount; i++) {
+                    segment.forEachAt(i, writer);
+                }
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+            drain(channel, buffer);
+            channel.force(false);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(temp);
+            throw e;
+        }
+        Files.move(temp, absolute, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static void put(FileChannel channel, ByteBuffer buffer, long value) throws IOException {
+        if (buffer.remaining() < Long.BYTES) {
+            drain(channel, buffer);
+        }
+        buffer.putLong(value);
+    }
+
+    private static void drain(FileChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+}
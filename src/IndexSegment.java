@@ -0,0 +1,119 @@
+import java.util.Arrays;
+
+// Read-only index segment: distinct hashes in ascending order, each with a
+// run of (songId, time) postings. Implementations differ in where the postings
+// live and how they are encoded.
+public interface IndexSegment {
+    // Number of distinct hashes
+    int size();
+
+    // Total number of postings
+    long postingCount();
+
+    // The i-th smallest hash
+    long key(int i);
+
+    // Number of postings of the i-th hash
+    int postingCountAt(int i);
+
+    // Calls the visitor for every posting of the i-th hash
+    void forEachAt(int i, PostingVisitor visitor);
+
+    // Position of hash among the keys, or -1 if absent
+    int find(long hash);
+
+    // Release any memory held outside the Java heap
+    default void close() {
+    }
+
+    // Calls the visitor for every posting of hash in this segment.
+    default void forEach(long hash, PostingVisitor visitor) {
+        int k = find(hash);
+        if (k >= 0) {
+            forEachAt(k, visitor);
+        }
+    }
+
+    // Number of postings for hash in this segment
+    default int postingCount(long hash) {
+        int k = find(hash);
+        return k < 0 ? 0 : postingCountAt(k);
+    }
+
+    // Builds the sealed segment that replaces base once delta is merged into it.
+    interface Factory {
+        IndexSegment merge(IndexSegment base, HashIndex delta);
+    }
+
+    // Destination of a merge: sized once, then filled key by key in ascending order.
+    interface Writer {
+        void allocate(int keys, long postings);
+
+        void key(int i, long hash, long start);
+
+        void posting(long p, long posting);
+
+        IndexSegment finish();
+    }
+
+    /**
+     * Writes base followed by delta into out. For each hash, postings keep their
+     * order: base first, then delta in insertion order (writers may reorder them). Two passes over the keys
+     * (count, then copy) let the output be allocated once at its final size.
+     */
+    static IndexSegment merge(IndexSegment base, HashIndex delta, Writer out) {
+        long[] deltaKeys = delta.keys();
+        Arrays.sort(deltaKeys);
+
+        int keyCount = 0;
+        int i = 0;
+        int j = 0;
+        while (i < base.size() || j < deltaKeys.length) {
+            if (j == deltaKeys.length || (i < base.size() && base.key(i) < deltaKeys[j])) {
+                i++;
+            } else if (i == base.size() || deltaKeys[j] < base.key(i)) {
+                j++;
+            } else {
+                i++;
+                j++;
+            }
+            keyCount++;
+        }
+        out.allocate(keyCount, base.postingCount() + delta.postingCount());
+
+        long[] position = new long[1];
+        PostingVisitor append = (songId, time) -> out.posting(position[0]++, HashIndex.pack(songId, time));
+        int k = 0;
+        i = 0;
+        j = 0;
+        while (i < base.size() || j < deltaKeys.length) {
+            long hash;
+            boolean fromBase;
+            boolean fromDelta;
+            if (j == deltaKeys.length || (i < base.size() && base.key(i) < deltaKeys[j])) {
+                hash = base.key(i);
+                fromBase = true;
+                fromDelta = false;
+            } else if (i == base.size() || deltaKeys[j] < base.key(i)) {
+                hash = deltaKeys[j];
+                fromBase = false;
+                fromDelta = true;
+            } else {
+                hash = base.key(i);
+                fromBase = true;
+                fromDelta = true;
+            }
+            out.key(k++, hash, position[0]);
+            if (fromBase) {
+                base.forEachAt(i, append);
+                i++;
+            }
+            if (fromDelta) {
+                delta.forEach(hash, append);
+                j++;
+            }
+        }
+        out.key(k, Long.MAX_VALUE, position[0]);
+        return out.finish();
+    }
+}
@@ -0,0 +1,203 @@
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// Runtime options of the EnhancedMatcher. Unlike FingerprintConfig these do not
+// change the hashes, so they are read from system properties at startup rather
+// than stored with the database.
+public class MatcherConfig {
+    // Where sealed index segments are kept
+    public enum IndexBackend {
+        // Java arrays (CsrSegment)
+        HEAP,
+        // Arena-managed native memory (OffHeapSegment); needs --enable-preview on Java 21
+        OFFHEAP,
+        // Java arrays with delta + varint encoded posting lists (CompressedSegment)
+        COMPRESSED
+    }
+
+    public static final MatcherConfig DEFAULT = new MatcherConfig(IndexBackend.HEAP);
+
+    private final IndexBackend indexBackend;
+    // Persisted index file, or null to rebuild the index from the database on every start
+    private final Path indexFile;
+    // Number of ranked candidates returned with each match
+    private final int topK;
+    // Aligned hits the best candidate needs to count as a match
+    private final int minMatches;
+    // Stop scoring once the best song can no longer be overtaken
+    private final boolean earlyExit;
+    // With earlyExit, also stop once the best song leads the runner-up by this many hits (0 = off)
+    private final int earlyExitMargin;
+    // Hashes with this many postings are stop-listed: not indexed further and ignored by queries (0 = no cap)
+    private final int maxPostings;
+    // Number of index shards scored in parallel per query
+    private final int shards;
+    // Results kept by the query cache (0 = no cache) and how long they stay valid (0 = forever)
+    private final int queryCacheSize;
+    private final long queryCacheTtlMillis;
+    // Bloom filter bits per key in front of each index segment (0 = no prefilter)
+    private final int bloomBitsPerKey;
+
+    public MatcherConfig(IndexBackend indexBackend) {
+        this(indexBackend, null);
+    }
+
+    public MatcherConfig(IndexBackend indexBackend, Path indexFile) {
+        this(indexBackend, indexFile, 5, 2, false, 0, 0, 1, 0, 60_000, 0);
+    }
+
+    private MatcherConfig(IndexBackend indexBackend, Path indexFile, int topK, int minMatches,
+                          boolean earlyExit, int earlyExitMargin, int maxPostings, int shards,
+                          int queryCacheSize, long queryCacheTtlMillis, int bloomBitsPerKey) {
+        if (topK < 1) {
+            throw new IllegalArgumentException("topK must be at least 1: " + topK);
+        }
+        if (minMatches < 1) {
+            throw new IllegalArgumentException("minMatches must be at least 1: " + minMatches);
+        }
+        if (earlyExitMargin < 0) {
+            throw new IllegalArgumentException("earlyExitMargin must not be negative: " + earlyExitMargin);
+        }
+        if (maxPostings < 0) {
+            throw new IllegalArgumentException("maxPostings must not be negative: " + maxPostings);
+        }
+        if (shards < 1) {
+            throw new IllegalArgumentException("shards must be at least 1: " + shards);
+        }
+        if (queryCacheSize < 0 || queryCacheTtlMillis < 0) {
+            throw new IllegalArgumentException("Query cache size and TTL must not be negative");
+        }
+        if (bloomBitsPerKey < 0) {
+            throw new IllegalArgumentException("bloomBitsPerKey must not be negative: " + bloomBitsPerKey);
+        }
+        this.indexBackend = indexBackend;
+        this.indexFile = indexFile;
+        this.topK = topK;
+        this.minMatches = minMatches;
+        this.earlyExit = earlyExit;
+        this.earlyExitMargin = earlyExitMargin;
+        this.maxPostings = maxPostings;
+        this.shards = shards;
+        this.queryCacheSize = queryCacheSize;
+        this.queryCacheTtlMillis = queryCacheTtlMillis;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+    }
+
+    public MatcherConfig withTopK(int topK) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, earlyExitMargin, maxPostings,
+                shards, queryCacheSize, queryCacheTtlMillis, bloomBitsPerKey);
+    }
+
+    public MatcherConfig withMinMatches(int minMatches) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, earlyExitMargin, maxPostings,
+                shards, queryCacheSize, queryCacheTtlMillis, bloomBitsPerKey);
+    }
+
+    // Enables early exit; margin 0 only stops once the leader is mathematically unbeatable
+    public MatcherConfig withEarlyExit(boolean earlyExit, int margin) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, margin, maxPostings,
+                shards, queryCacheSize, queryCacheTtlMillis, bloomBitsPerKey);
+    }
+
+    // Splits the index into shards that are scored in parallel
+    public MatcherConfig withShards(int shards) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, earlyExitMargin, maxPostings,
+                shards, queryCacheSize, queryCacheTtlMillis, bloomBitsPerKey);
+    }
+
+    // Caches up to size results for ttlMillis (0 = no expiry); size 0 disables the cache
+    public MatcherConfig withQueryCache(int size, long ttlMillis) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, earlyExitMargin, maxPostings,
+                shards, size, ttlMillis, bloomBitsPerKey);
+    }
+
+    // Puts a Bloom filter of bitsPerKey bits per key in front of every index segment; 0 removes it
+    public MatcherConfig withBloomFilter(int bitsPerKey) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, earlyExitMargin, maxPostings,
+                shards, queryCacheSize, queryCacheTtlMillis, bitsPerKey);
+    }
+
+    // Caps posting lists at maxPostings; 0 removes the cap
+    public MatcherConfig withMaxPostings(int maxPostings) {
+        return new MatcherConfig(indexBackend, indexFile, topK, minMatches, earlyExit, earlyExitMargin, maxPostings,
+                shards, queryCacheSize, queryCacheTtlMillis, bloomBitsPerKey);
+    }
+
+    // Reads -Dsaudentify.index (HEAP, OFFHEAP or COMPRESSED), -Dsaudentify.indexFile (path),
+    // -Dsaudentify.topK, -Dsaudentify.minMatches, -Dsaudentify.earlyExit, -Dsaudentify.earlyExitMargin,
+    // -Dsaudentify.maxPostings, -Dsaudentify.shards, -Dsaudentify.queryCache,
+    // -Dsaudentify.queryCacheTtl and -Dsaudentify.bloomBits
+    public static MatcherConfig fromSystemProperties() {
+        String backend = System.getProperty("saudentify.index");
+        String indexFile = System.getProperty("saudentify.indexFile");
+        return new MatcherConfig(
+                backend == null ? DEFAULT.indexBackend : IndexBackend.valueOf(backend.trim().toUpperCase()),
+                indexFile == null || indexFile.isBlank() ? null : Paths.get(indexFile.trim()),
+                Integer.getInteger("saudentify.topK", DEFAULT.topK),
+                Integer.getInteger("saudentify.minMatches", DEFAULT.minMatches),
+                Boolean.getBoolean("saudentify.earlyExit"),
+                Integer.getInteger("saudentify.earlyExitMargin", DEFAULT.earlyExitMargin),
+                Integer.getInteger("saudentify.maxPostings", DEFAULT.maxPostings),
+                Integer.getInteger("saudentify.shards", DEFAULT.shards),
+                Integer.getInteger("saudentify.queryCache", DEFAULT.queryCacheSize),
+                Long.getLong("saudentify.queryCacheTtl", DEFAULT.queryCacheTtlMillis),
+                Integer.getInteger("saudentify.bloomBits", DEFAULT.bloomBitsPerKey));
+    }
+
+    public IndexBackend getIndexBackend() {
+        return indexBackend;
+    }
+
+    public Path getIndexFile() {
+        return indexFile;
+    }
+
+    public int getTopK() {
+        return topK;
+    }
+
+    public int getMinMatches() {
+        return minMatches;
+    }
+
+    public boolean isEarlyExit() {
+        return earlyExit;
+    }
+
+    public int getEarlyExitMargin() {
+        return earlyExitMargin;
+    }
+
+    public int getMaxPostings() {
+        return maxPostings;
+    }
+
+    public int getShards() {
+        return shards;
+    }
+
+    public int getQueryCacheSize() {
+        return queryCacheSize;
+    }
+
+    public long getQueryCacheTtlMillis() {
+        return queryCacheTtlMillis;
+    }
+
+    public int getBloomBitsPerKey() {
+        return bloomBitsPerKey;
+    }
+
+    // Builds sealed segments for the configured backend
+    IndexSegment.Factory segmentFactory() {
+        switch (indexBackend) {
+            case OFFHEAP:
+                return OffHeapSegment.FACTORY;
+            case COMPRESSED:
+                return CompressedSegment.FACTORY;
+            case HEAP:
+            default:
+                return CsrSegment::merge;
+        }
+    }
+}
@@ -0,0 +1,113 @@
+import java.lang.foreign.Arena;
+import java.lang.foreign.MemorySegment;
+import java.lang.foreign.ValueLayout;
+
+// Index segment with the same sorted CSR layout as CsrSegment, but with the keys,
+// offsets and postings in off-heap memory owned by a shared Arena. Only the
+// counts and the memory handles live on the heap, so a multi-GB catalogue adds
+// nothing for the garbage collector to trace or copy.
+public class OffHeapSegment implements IndexSegment {
+    public static final IndexSegment.Factory FACTORY = OffHeapSegment::merge;
+
+    private final Arena arena;
+    private final int keyCount;
+    private final long postingCount;
+    // keyCount longs, keyCount + 1 longs, and postingCount longs
+    private final MemorySegment keys;
+    private final MemorySegment offsets;
+    private final MemorySegment postings;
+    private final CsrSegment.KeyReader keyReader;
+
+    OffHeapSegment(Arena arena, int keyCount, long postingCount,
+                   MemorySegment keys, MemorySegment offsets, MemorySegment postings) {
+        this.arena = arena;
+        this.keyCount = keyCount;
+        this.postingCount = postingCount;
+        this.keys = keys;
+        this.offsets = offsets;
+        this.postings = postings;
+        this.keyReader = i -> keys.getAtIndex(ValueLayout.JAVA_LONG, i);
+    }
+
+    /**
+     * Builds a new off-heap segment holding the postings of base followed by those of delta.
+     */
+    public static IndexSegment merge(IndexSegment base, HashIndex delta) {
+        return IndexSegment.merge(base, delta, new IndexSegment.Writer() {
+            private Arena arena;
+            private int keyCount;
+            private long postingCount;
+            private MemorySegment keys;
+            private MemorySegment offsets;
+            private MemorySegment postings;
+
+            @Override
+            public void allocate(int keyCount, long postingCount) {
+                this.arena = Arena.ofShared();
+                this.keyCount = keyCount;
+                this.postingCount = postingCount;
+                // Zero-length allocations are not allowed, so reserve at least one entry
+                keys = arena.allocate(Math.max(1L, keyCount) * Long.BYTES, Long.BYTES);
+                offsets = arena.allocate((keyCount + 1L) * Long.BYTES, Long.BYTES);
+                postings = arena.allocate(Math.max(1, postingCount) * Long.BYTES, Long.BYTES);
+            }
+
+            @Override
+            public void key(int i, long hash, long start) {
+                if (i < keyCount) {
+                    keys.setAtIndex(ValueLayout.JAVA_LONG, i, hash);
+                }
+                offsets.setAtIndex(ValueLayout.JAVA_LONG, i, start);
+            }
+
+            @Override
+            public void posting(long p, long posting) {
+                postings.setAtIndex(ValueLayout.JAVA_LONG, p, posting);
+            }
+
+            @Override
+            public IndexSegment finish() {
+                return new OffHeapSegment(arena, keyCount, postingCount, keys, offsets, postings);
+            }
+        });
+    }
+
+    @Override
+    public int size() {
+        return keyCount;
+    }
+
+    @Override
+    public long postingCount() {
+        return postingCount;
+    }
+
+    @Override
+    public long key(int i) {
+        return keys.getAtIndex(ValueLayout.JAVA_LONG, i);
+    }
+
+    @Override
+    public int postingCountAt(int i) {
+        return (int) (offsets.getAtIndex(ValueLayout.JAVA_LONG, i + 1) - offsets.getAtIndex(ValueLayout.JAVA_LONG, i));
+    }
+
+    @Override
+    public void forEachAt(int i, PostingVisitor visitor) {
+        long end = offsets.getAtIndex(ValueLayout.JAVA_LONG, i + 1);
+        for (long p = offsets.getAtIndex(ValueLayout.JAVA_LONG, i); p < end; p++) {
+            long posting = postings.getAtIndex(ValueLayout.JAVA_LONG, p);
+            visitor.visit(HashIndex.songId(posting), HashIndex.time(posting));
+        }
+    }
+
+    @Override
+    public int find(long hash) {
+        return CsrSegment.interpolationSearch(keyCount, hash, keyReader);
+    }
+
+    @Override
+    public void close() {
+        arena.close();
+    }
+}
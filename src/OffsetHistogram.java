@@ -0,0 +1,260 @@
+import java.util.Arrays;
+
+// Counts aligned matches per (songId, offset) for one query without boxing.
+// Counters live in an open-addressing table keyed by the packed pair; a slot
+// belongs to the current query only if its stamp equals the query's generation,
+// so starting a new query is O(1) instead of clearing the table.
+// The top K songs (each with its best offset) are kept in a bounded min-heap
+// that is updated as counts grow, so no final scan is needed. Songs are ranked
+// by hits, ties going to the lower songId, and a song outside the heap never
+// ranks above the heap's minimum, so the heap always holds the true top K
+// whatever order the postings arrive in.
+// Instances are reused across queries but are not thread-safe; keep one per thread.
+public class OffsetHistogram implements PostingVisitor {
+    private static final int INITIAL_CAPACITY = 1 << 12;
+    private static final float MAX_LOAD = 0.5f;
+
+    private long[] keys;
+    private int[] counts;
+    private int[] stamps;
+    private int generation;
+    private int used;
+
+    // Time of the query fingerprint whose postings are being visited
+    private int queryTime;
+
+    // Top candidates: at most topK distinct songs in a heap with the lowest ranked at the root
+    private int topK;
+    private int heapSize;
+    private int[] heapSongs = new int[0];
+    private int[] heapOffsets = new int[0];
+    private int[] heapCounts = new int[0];
+
+    private int bestSongId;
+    private int bestOffset;
+    private int bestCount;
+
+    public OffsetHistogram() {
+        keys = new long[INITIAL_CAPACITY];
+        counts = new int[INITIAL_CAPACITY];
+        stamps = new int[INITIAL_CAPACITY];
+        reset(1);
+    }
+
+    // Forget all counts and start a new query that ranks the best topK songs
+    public void reset(int topK) {
+        if (topK < 1) {
+            throw new IllegalArgumentException("topK must be at least 1: " + topK);
+        }
+        if (++generation == 0) {
+            // Stamps wrapped around; make sure no old slot looks current
+            Arrays.fill(stamps, 0);
+            generation = 1;
+        }
+        used = 0;
+        if (heapSongs.length < topK) {
+            heapSongs = new int[topK];
+            heapOffsets = new int[topK];
+            heapCounts = new int[topK];
+        }
+        this.topK = topK;
+        heapSize = 0;
+        bestSongId = -1;
+        bestOffset = 0;
+        bestCount = 0;
+    }
+
+    // Sets the query time that following visit calls are aligned against
+    public void setQueryTime(int queryTime) {
+        this.queryTime = queryTime;
+    }
+
+    // Counts one posting of a hash that occurs at the current query time
+    @Override
+    public void visit(int songId, int time) {
+        add(songId, time - queryTime);
+    }
+
+    public void add(int songId, int offset) {
+        long key = HashIndex.pack(songId, offset);
+        int mask = keys.length - 1;
+        int slot = (int) HashIndex.mix(key) & mask;
+        while (stamps[slot] == generation) {
+            if (keys[slot] == key) {
+                offer(songId, offset, ++counts[slot]);
+                return;
+            }
+            slot = (slot + 1) & mask;
+        }
+
+        stamps[slot] = generation;
+        keys[slot] = key;
+        counts[slot] = 1;
+        offer(songId, offset, 1);
+        if (++used > keys.length * MAX_LOAD) {
+            grow();
+        }
+    }
+
+    // Records that (songId, offset) has reached count hits
+    private void offer(int songId, int offset, int count) {
+        if (count > bestCount || (count == bestCount && songId < bestSongId)) {
+            bestCount = count;
+            bestSongId = songId;
+            bestOffset = offset;
+        }
+        // A full heap whose minimum is not outranked cannot change: a song already
+        // in it had at least the minimum's hits and now has more
+        if (heapSize == topK && !ranksAbove(count, songId, heapCounts[0], heapSongs[0])) {
+            return;
+        }
+        // topK is small, so a linear search for the song is cheaper than an index
+        for (int i = 0; i < heapSize; i++) {
+            if (heapSongs[i] == songId) {
+                if (count > heapCounts[i]) {
+                    heapCounts[i] = count;
+                    heapOffsets[i] = offset;
+                    siftDown(i);
+                }
+                return;
+            }
+        }
+        if (heapSize < topK) {
+            int i = heapSize++;
+            heapSongs[i] = songId;
+            heapOffsets[i] = offset;
+            heapCounts[i] = count;
+            siftUp(i);
+        } else {
+            // Replace the weakest candidate
+            heapSongs[0] = songId;
+            heapOffsets[0] = offset;
+            heapCounts[0] = count;
+            siftDown(0);
+        }
+    }
+
+    // Ranking order of songs: more hits first, then lower songId
+    private static boolean ranksAbove(int count, int songId, int otherCount, int otherSongId) {
+        return count > otherCount || (count == otherCount && songId < otherSongId);
+    }
+
+    // Whether heap entry i ranks below entry j
+    private boolean ranksBelow(int i, int j) {
+        return ranksAbove(heapCounts[j], heapSongs[j], heapCounts[i], heapSongs[i]);
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!ranksBelow(i, parent)) break;
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int child = 2 * i + 1;
+            if (child >= heapSize) break;
+            if (child + 1 < heapSize && ranksBelow(child + 1, child)) {
+                child++;
+            }
+            if (!ranksBelow(child, i)) break;
+            swap(i, child);
+            i = child;
+        }
+    }
+
+    private void swap(int i, int j) {
+        int song = heapSongs[i];
+        int offset = heapOffsets[i];
+        int count = heapCounts[i];
+        heapSongs[i] = heapSongs[j];
+        heapOffsets[i] = heapOffsets[j];
+        heapCounts[i] = heapCounts[j];
+        heapSongs[j] = song;
+        heapOffsets[j] = offset;
+        heapCounts[j] = count;
+    }
+
+    // Number of ranked candidates (at most topK)
+    public int candidates() {
+        return heapSize;
+    }
+
+    /**
+     * Sorts the candidates by descending count (ties by ascending songId) so that
+     * candidate i is the (i + 1)-th best. Call once scoring is finished; further
+     * adds are not allowed until the next reset.
+     */
+    public void rankCandidates() {
+        // Heap sort: repeatedly move the lowest ranked to the end
+        int size = heapSize;
+        while (heapSize > 1) {
+            swap(0, --heapSize);
+            siftDown(0);
+        }
+        heapSize = size;
+    }
+
+    public int candidateSongId(int i) {
+        return heapSongs[i];
+    }
+
+    public int candidateOffset(int i) {
+        return heapOffsets[i];
+    }
+
+    public int candidateHits(int i) {
+        return heapCounts[i];
+    }
+
+    // Most hits of any song other than the current best one, as far as the heap knows;
+    // exact whenever the heap holds at least two songs
+    public int getRunnerUpCount() {
+        int runnerUp = 0;
+        for (int i = 0; i < heapSize; i++) {
+            if (heapSongs[i] != bestSongId && heapCounts[i] > runnerUp) {
+                runnerUp = heapCounts[i];
+            }
+        }
+        return runnerUp;
+    }
+
+    public int getBestSongId() {
+        return bestSongId;
+    }
+
+    public int getBestOffset() {
+        return bestOffset;
+    }
+
+    public int getBestCount() {
+        return bestCount;
+    }
+
+    // Double the table, keeping only the current query's slots
+    private void grow() {
+        long[] oldKeys = keys;
+        int[] oldCounts = counts;
+        int[] oldStamps = stamps;
+        int oldGeneration = generation;
+        keys = new long[oldKeys.length * 2];
+        counts = new int[oldKeys.length * 2];
+        stamps = new int[oldKeys.length * 2];
+        generation = 1;
+
+        int mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (oldStamps[i] != oldGeneration) continue;
+            int slot = (int) HashIndex.mix(oldKeys[i]) & mask;
+            while (stamps[slot] == generation) {
+                slot = (slot + 1) & mask;
+            }
+            stamps[slot] = generation;
+            keys[slot] = oldKeys[i];
+            counts[slot] = oldCounts[i];
+        }
+    }
+}
@@ -0,0 +1,58 @@
+import java.util.Arrays;
+
+// Posting lists of a sorted set of hashes, fetched from one shard's snapshot in a
+// single pass and then replayed for any number of queries. Used by batch matching
+// so a hash shared by many queries is looked up once. Postings are kept in the
+// order the snapshot yields them, so replaying them scores exactly like a lookup.
+public class PostingTable {
+    // Postings of hash i, packed as in HashIndex, are postings[offsets[i], offsets[i + 1])
+    private final int[] offsets;
+    private long[] postings;
+    // Stop-listed hashes, which are not looked up
+    private final boolean[] stopped;
+
+    /**
+     * Looks up every hash in the snapshot.
+     * @param hashes Distinct hashes, sorted so the lookups walk the segments in key order
+     * @param stopped Which of the hashes are stop-listed; decided over all shards by the caller
+     */
+    public PostingTable(SegmentedIndex.Snapshot snapshot, long[] hashes, boolean[] stopped) {
+        this.offsets = new int[hashes.length + 1];
+        this.postings = new long[Math.max(16, hashes.length)];
+        this.stopped = stopped;
+        int[] size = new int[1];
+        PostingVisitor append = (songId, time) -> {
+            if (size[0] == postings.length) {
+                if (postings.length == Integer.MAX_VALUE - 8) {
+                    throw new IllegalStateException("Too many postings for one batch");
+                }
+                postings = Arrays.copyOf(postings, (int) Math.min(Integer.MAX_VALUE - 8, 2L * postings.length));
+            }
+            postings[size[0]++] = HashIndex.pack(songId, time);
+        };
+        for (int i = 0; i < hashes.length; i++) {
+            if (!stopped[i]) {
+                snapshot.forEach(hashes[i], 0, append);
+            }
+            offsets[i + 1] = size[0];
+        }
+    }
+
+    /**
+     * Calls the visitor for every posting of the i-th hash.
+     * @return False if the hash is stop-listed
+     */
+    public boolean forEach(int i, PostingVisitor visitor) {
+        if (stopped[i]) {
+            return false;
+        }
+        for (int p = offsets[i]; p < offsets[i + 1]; p++) {
+            visitor.visit(HashIndex.songId(postings[p]), HashIndex.time(postings[p]));
+        }
+        return true;
+    }
+
+    public long postingCount() {
+        return offsets[offsets.length - 1];
+    }
+}
@@ -0,0 +1,4 @@
+// Receives the postings (occurrences in the catalogue) of a fingerprint hash.
+public interface PostingVisitor {
+    void visit(int songId, int time);
+}
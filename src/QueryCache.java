@@ -0,0 +1,154 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+// Bounded cache of match results keyed by a SHA-256 digest of the query: either the
+// fingerprint sequence or the raw bytes of an audio file. Least recently used entries
+// are evicted beyond maxEntries, and entries older than the TTL are ignored.
+// Adding songs can change any result, so invalidate() drops everything; results
+// computed against the old catalogue are refused afterwards (see generation()).
+public class QueryCache {
+    // Separates the two kinds of keys
+    private static final byte FINGERPRINTS = 1;
+    private static final byte AUDIO = 2;
+
+    private static final ThreadLocal<MessageDigest> SHA256 = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 is not available", e);
+        }
+    });
+
+    private final int maxEntries;
+    private final long ttlNanos;
+    // Access-ordered, so iteration starts at the least recently used entry; guarded by this
+    private final LinkedHashMap<ByteBuffer, Entry> entries;
+    private long generation;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * @param maxEntries Most results kept
+     * @param ttlMillis How long a result stays valid, or 0 for no limit
+     */
+    public QueryCache(int maxEntries, long ttlMillis) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Cache size must be at least 1: " + maxEntries);
+        }
+        if (ttlMillis < 0) {
+            throw new IllegalArgumentException("TTL must not be negative: " + ttlMillis);
+        }
+        this.maxEntries = maxEntries;
+        this.ttlNanos = ttlMillis * 1_000_000L;
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<ByteBuffer, Entry> eldest) {
+                return size() > QueryCache.this.maxEntries;
+            }
+        };
+    }
+
+    // Key of a query's fingerprint sequence: every (time, hash) pair in order
+    public static ByteBuffer key(FingerprintList fingerprints) {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+        digest.update(FINGERPRINTS);
+        ByteBuffer buffer = ByteBuffer.allocate(12 * 256);
+        for (int i = 0; i < fingerprints.size(); i++) {
+            if (buffer.remaining() < 12) {
+                digest.update(buffer.flip());
+                buffer.clear();
+            }
+            buffer.putInt(fingerprints.time(i)).putLong(fingerprints.hash(i));
+        }
+        digest.update(buffer.flip());
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    // Key of an audio file's raw bytes; far cheaper than decoding and fingerprinting it
+    public static ByteBuffer key(Path audioFile) throws IOException {
+        MessageDigest digest = SHA256.get();
+        digest.reset();
+        digest.update(AUDIO);
+        byte[] buffer = new byte[1 << 16];
+        try (InputStream in = Files.newInputStream(audioFile)) {
+            int read;
+            while ((read = in.read(buffer)) > 0) {
+                digest.update(buffer, 0, read);
+            }
+        }
+        return ByteBuffer.wrap(digest.digest());
+    }
+
+    // Cached result for key, or null on a miss
+    public EnhancedMatcher.MatchResult get(ByteBuffer key) {
+        synchronized (this) {
+            Entry entry = entries.get(key);
+            if (entry != null && (ttlNanos == 0 || System.nanoTime() - entry.created < ttlNanos)) {
+                hits.incrementAndGet();
+                return entry.result;
+            }
+            if (entry != null) {
+                entries.remove(key);
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    // Current generation; pass it to put to drop results that an invalidation made stale
+    public synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * Stores a result computed while generation() returned generation. Results
+     * from before the last invalidation are not stored.
+     */
+    public synchronized void put(ByteBuffer key, EnhancedMatcher.MatchResult result, long generation) {
+        if (generation == this.generation) {
+            entries.put(key, new Entry(result, System.nanoTime()));
+        }
+    }
+
+    // Drops every entry, e.g. after songs were added
+    public synchronized void invalidate() {
+        generation++;
+        entries.clear();
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    @Override
+    public String toString() {
+        return "Query cache: " + size() + " entries, " + getHits() + " hits, " + getMisses() + " misses";
+    }
+
+    private static class Entry {
+        private final EnhancedMatcher.MatchResult result;
+        private final long created;
+
+        Entry(EnhancedMatcher.MatchResult result, long created) {
+            this.result = result;
+            this.created = created;
+        }
+    }
+}
@@ -0,0 +1,326 @@
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+// Fingerprint index made of one large sealed, sorted IndexSegment plus a few
+// small recent segments that hold songs added since the last merge. The factory
+// decides where the large sealed segment lives (heap or off-heap); recent
+// segments are always on the heap.
+//
+// Concurrency: one writer, any number of lock-free readers. The writer collects
+// new postings in a private HashIndex (pending) and publishes them by sealing
+// them into a new recent segment and swapping in a new immutable Snapshot
+// (copy-on-write). Recent segments are merged size-tiered so only a handful are
+// probed per lookup, and folded into a new large segment once they hold more than
+// a fraction of it. Readers acquire a snapshot, which stays valid until they
+// release it. Consecutive snapshots share segments, so each segment counts the
+// live snapshots that contain it and is closed only once none is left.
+//
+// With a prefilter, every segment is wrapped in a FilteredSegment whose Bloom
+// filter is built when the segment is created, so new songs are covered as soon
+// as they are published. Query lookups of hashes absent from the index are
+// counted in Stats; the writer's own lookups are not.
+public class SegmentedIndex {
+    // Merge into the large segment when the recent ones hold more than 1/MERGE_RATIO of its postings...
+    private static final int MERGE_RATIO = 8;
+    // ...but never for fewer postings than this
+    private static final int MIN_MERGE_POSTINGS = 1 << 16;
+
+    private final IndexSegment.Factory factory;
+    // Bloom filter bits per key of each segment, or 0 for no prefilter
+    private final int bloomBitsPerKey;
+    // Outcomes of query lookups of absent hashes, or null without a prefilter
+    private final FilteredSegment.Stats filterStats;
+    // Number of live snapshots containing each segment; segments compare by identity
+    private final Map<IndexSegment, AtomicInteger> segmentReferences = new ConcurrentHashMap<>();
+    // Current snapshot; replaced, never modified, by the writer
+    private volatile Snapshot current;
+    // Writer-private postings not yet visible to readers
+    private HashIndex pending;
+
+    public SegmentedIndex() {
+        this(CsrSegment::merge);
+    }
+
+    public SegmentedIndex(IndexSegment.Factory factory) {
+        this(factory, CsrSegment.EMPTY);
+    }
+
+    // Starts from an existing sealed segment, e.g. one mapped from an index file.
+    // The index takes ownership of the segment and closes it once merged away.
+    public SegmentedIndex(IndexSegment.Factory factory, IndexSegment sealed) {
+        this(factory, sealed, 0);
+    }
+
+    // As above, with a Bloom filter of bloomBitsPerKey bits per key in front of every segment (0 = none)
+    public SegmentedIndex(IndexSegment.Factory factory, IndexSegment sealed, int bloomBitsPerKey) {
+        if (bloomBitsPerKey < 0) {
+            throw new IllegalArgumentException("Bloom filter bits per key must not be negative: " + bloomBitsPerKey);
+        }
+        this.factory = factory;
+        this.bloomBitsPerKey = bloomBitsPerKey;
+        this.filterStats = bloomBitsPerKey > 0 ? new FilteredSegment.Stats() : null;
+        this.current = new Snapshot(filtered(sealed), new IndexSegment[0], filterStats, segmentReferences);
+        this.pending = new HashIndex();
+    }
+
+    // Writer only: adds a posting that becomes visible at the next publish or merge
+    public void add(long hash, int songId, int time) {
+        pending.add(hash, songId, time);
+    }
+
+    // Writer only: makes the pending postings visible to readers
+    public void publish() {
+        if (pending.postingCount() == 0) return;
+        if (mergeDue()) {
+            merge();
+            return;
+        }
+        Snapshot snapshot = current;
+        IndexSegment[] recent = Arrays.copyOf(snapshot.recent, snapshot.recent.length + 1);
+        recent[recent.length - 1] = filtered(CsrSegment.merge(CsrSegment.EMPTY, pending));
+        pending = new HashIndex();
+        // Size-tiered: fold the newest segment into the previous one while they are of similar size
+        int count = recent.length;
+        while (count >= 2 && recent[count - 2].postingCount() <= 2 * recent[count - 1].postingCount()) {
+            recent[count - 2] = filtered(CsrSegment.merge(recent[count - 2], toHashIndex(recent[count - 1])));
+            count--;
+        }
+        replace(new Snapshot(snapshot.sealed, Arrays.copyOf(recent, count), filterStats, segmentReferences));
+    }
+
+    // Writer only: merges everything into a new large segment if the recent part has grown
+    // large enough. Called periodically while loading; pending postings stay unpublished otherwise.
+    public void maybeMerge() {
+        if (mergeDue()) {
+            merge();
+        }
+    }
+
+    private boolean mergeDue() {
+        Snapshot snapshot = current;
+        long threshold = Math.max(MIN_MERGE_POSTINGS, snapshot.sealed.postingCount() / MERGE_RATIO);
+        return pending.postingCount() + snapshot.recentPostings > threshold;
+    }
+
+    // Writer only: merges the recent segments and pending postings into a new large segment
+    public void merge() {
+        Snapshot snapshot = current;
+        if (pending.postingCount() == 0 && snapshot.recent.length == 0) return;
+        HashIndex delta = toHashIndex(snapshot.recent);
+        long[] keys = pending.keys();
+        for (long hash : keys) {
+            pending.forEach(hash, (songId, time) -> delta.add(hash, songId, time));
+        }
+        IndexSegment merged = filtered(factory.merge(snapshot.sealed, delta));
+        pending = new HashIndex();
+        replace(new Snapshot(merged, new IndexSegment[0], filterStats, segmentReferences));
+    }
+
+    // Writer only: merges everything and returns the large segment, which stays owned by the index
+    public IndexSegment seal() {
+        merge();
+        return current.sealed;
+    }
+
+    // Puts the prefilter, if any, in front of a new segment
+    private IndexSegment filtered(IndexSegment segment) {
+        if (bloomBitsPerKey == 0 || segment.size() == 0) {
+            return segment;
+        }
+        return new FilteredSegment(segment, BloomFilter.of(segment, bloomBitsPerKey));
+    }
+
+    // Query lookups of absent hashes and how the prefilter answered them, or null without a prefilter
+    public FilteredSegment.Stats getFilterStats() {
+        return filterStats;
+    }
+
+    // Expected share of absent hashes that pass at least one of the current filters,
+    // from the filters' sizes; comparable to Stats.getFalsePositiveRate()
+    public double getExpectedFalsePositiveRate() {
+        Snapshot snapshot = current;
+        double rejected = 1;
+        for (IndexSegment segment : snapshot.segments()) {
+            if (segment instanceof FilteredSegment) {
+                rejected *= 1 - ((FilteredSegment) segment).getFilter().expectedFalsePositiveRate();
+            }
+        }
+        return 1 - rejected;
+    }
+
+    // Publishes next and retires the previous snapshot. Segments next shares with it
+    // stay open; the others are closed once the previous snapshot's readers are gone.
+    private void replace(Snapshot next) {
+        Snapshot previous = current;
+        current = next;
+        previous.release();
+    }
+
+    private static HashIndex toHashIndex(IndexSegment... segments) {
+        HashIndex index = new HashIndex();
+        for (IndexSegment segment : segments) {
+            for (int i = 0; i < segment.size(); i++) {
+                long hash = segment.key(i);
+                segment.forEachAt(i, (songId, time) -> index.add(hash, songId, time));
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Pins the current snapshot for reading; pair every call with Snapshot.release().
+     * Lock-free: retries only if the snapshot was retired meanwhile.
+     */
+    public Snapshot acquire() {
+        while (true) {
+            Snapshot snapshot = current;
+            if (snapshot.tryRetain()) {
+                return snapshot;
+            }
+        }
+    }
+
+    // Calls the visitor for every visible posting of hash
+    public void forEach(long hash, PostingVisitor visitor) {
+        Snapshot snapshot = acquire();
+        try {
+            snapshot.forEach(hash, 0, visitor);
+        } finally {
+            snapshot.release();
+        }
+    }
+
+    // Writer only: postings of hash, including pending ones. Only the writer retires
+    // snapshots, so it can read the current one without pinning it.
+    public int postingCount(long hash) {
+        return current.postingCount(hash) + pending.postingCount(hash);
+    }
+
+    // Visible postings
+    public long postingCount() {
+        Snapshot snapshot = current;
+        return snapshot.sealed.postingCount() + snapshot.recentPostings;
+    }
+
+    // Releases the segments once current readers are done; the index is empty afterwards
+    public void close() {
+        pending = new HashIndex();
+        replace(new Snapshot(CsrSegment.EMPTY, new IndexSegment[0], filterStats, segmentReferences));
+    }
+
+    // Immutable view of the index: the large segment and the recent ones, newest last
+    public static final class Snapshot {
+        private final IndexSegment sealed;
+        private final IndexSegment[] recent;
+        private final long recentPostings;
+        // Where query lookups of absent hashes are counted, or null
+        private final FilteredSegment.Stats filterStats;
+        // One reference for being current plus one per reader; 0 means retired
+        private final AtomicInteger references = new AtomicInteger(1);
+        // The index's count of live snapshots per segment
+        private final Map<IndexSegment, AtomicInteger> segmentReferences;
+
+        private Snapshot(IndexSegment sealed, IndexSegment[] recent, FilteredSegment.Stats filterStats,
+                         Map<IndexSegment, AtomicInteger> segmentReferences) {
+            this.sealed = sealed;
+            this.recent = recent;
+            this.filterStats = filterStats;
+            this.segmentReferences = segmentReferences;
+            // Built by the writer from the current snapshot, which still holds every segment it
+            // reuses, so a count never rises again once it has dropped to 0
+            for (IndexSegment segment : segments()) {
+                segmentReferences.computeIfAbsent(segment, s -> new AtomicInteger()).incrementAndGet();
+            }
+            long postings = 0;
+            for (IndexSegment segment : recent) {
+                postings += segment.postingCount();
+            }
+            this.recentPostings = postings;
+        }
+
+        // The large segment followed by the recent ones
+        private IndexSegment[] segments() {
+            IndexSegment[] segments = new IndexSegment[recent.length + 1];
+            segments[0] = sealed;
+            System.arraycopy(recent, 0, segments, 1, recent.length);
+            return segments;
+        }
+
+        private boolean tryRetain() {
+            int count;
+            do {
+                count = references.get();
+                if (count == 0) return false;
+            } while (!references.compareAndSet(count, count + 1));
+            return true;
+        }
+
+        // Once retired and unpinned, closes the segments no other live snapshot contains
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                for (IndexSegment segment : segments()) {
+                    if (segmentReferences.get(segment).decrementAndGet() == 0) {
+                        segmentReferences.remove(segment);
+                        segment.close();
+                    }
+                }
+            }
+        }
+
+        /**
+         * Calls the visitor for every posting of hash, unless the hash has maxPostings
+         * or more postings (0 means no limit).
+         * @return False if the hash was skipped for having too many postings
+         */
+        public boolean forEach(long hash, int maxPostings, PostingVisitor visitor) {
+            int k = sealed.find(hash);
+            if (maxPostings > 0) {
+                int count = k < 0 ? 0 : sealed.postingCountAt(k);
+                for (IndexSegment segment : recent) {
+                    count += segment.postingCount(hash);
+                }
+                if (count >= maxPostings) {
+                    return false;
+                }
+            }
+            boolean found = k >= 0;
+            if (found) {
+                sealed.forEachAt(k, visitor);
+            }
+            for (IndexSegment segment : recent) {
+                int r = segment.find(hash);
+                if (r >= 0) {
+                    segment.forEachAt(r, visitor);
+                    found = true;
+                }
+            }
+            if (!found && filterStats != null) {
+                filterStats.recordAbsent(passesAnyFilter(hash));
+            }
+            return true;
+        }
+
+        // Whether some segment's filter let an absent hash through to a search
+        private boolean passesAnyFilter(long hash) {
+            if (sealed instanceof FilteredSegment && ((FilteredSegment) sealed).mightContain(hash)) {
+                return true;
+            }
+            for (IndexSegment segment : recent) {
+                if (segment instanceof FilteredSegment && ((FilteredSegment) segment).mightContain(hash)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        public int postingCount(long hash) {
+            int count = sealed.postingCount(hash);
+            for (IndexSegment segment : recent) {
+                count += segment.postingCount(hash);
+            }
+            return count;
+        }
+    }
+}
@@ -0,0 +1,104 @@
+// Fingerprint index split into shards by songId (songId mod shard count), each
+// a SegmentedIndex of its own. Every song's postings live in exactly one shard,
+// so shards can be scored independently and in parallel, and their best
+// candidates merged without double counting.
+public class ShardedIndex {
+    private final SegmentedIndex[] shards;
+
+    public ShardedIndex(int shardCount, IndexSegment.Factory factory) {
+        this(shardCount, factory, 0);
+    }
+
+    // Empty shards, each with a Bloom filter of bloomBitsPerKey bits per key (0 = none)
+    public ShardedIndex(int shardCount, IndexSegment.Factory factory, int bloomBitsPerKey) {
+        if (shardCount < 1) {
+            throw new IllegalArgumentException("Shard count must be at least 1: " + shardCount);
+        }
+        this.shards = new SegmentedIndex[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shards[i] = new SegmentedIndex(factory, CsrSegment.EMPTY, bloomBitsPerKey);
+        }
+    }
+
+    // Wraps existing shards, e.g. ones mapped from index files; the index takes ownership
+    public ShardedIndex(SegmentedIndex[] shards) {
+        if (shards.length < 1) {
+            throw new IllegalArgumentException("At least one shard is required");
+        }
+        this.shards = shards.clone();
+    }
+
+    public int shardCount() {
+        return shards.length;
+    }
+
+    public SegmentedIndex shard(int i) {
+        return shards[i];
+    }
+
+    // Shard holding the postings of songId
+    public int shardOf(int songId) {
+        return Math.floorMod(songId, shards.length);
+    }
+
+    public void add(long hash, int songId, int time) {
+        shards[shardOf(songId)].add(hash, songId, time);
+    }
+
+    // Make each shard's pending postings visible to readers
+    public void publish() {
+        for (SegmentedIndex shard : shards) {
+            shard.publish();
+        }
+    }
+
+    // Merge each shard's recent postings if they have grown large enough
+    public void maybeMerge() {
+        for (SegmentedIndex shard : shards) {
+            shard.maybeMerge();
+        }
+    }
+
+    public void merge() {
+        for (SegmentedIndex shard : shards) {
+            shard.merge();
+        }
+    }
+
+    public long postingCount() {
+        long count = 0;
+        for (SegmentedIndex shard : shards) {
+            count += shard.postingCount();
+        }
+        return count;
+    }
+
+    // Writer only: postings of hash in all shards, including pending ones
+    public int postingCount(long hash) {
+        int count = 0;
+        for (SegmentedIndex shard : shards) {
+            count += shard.postingCount(hash);
+        }
+        return count;
+    }
+
+    // Prefilter outcomes of query lookups of absent hashes, summed over the shards:
+    // {rejected, false positives}. A hash absent from several shards counts once per shard.
+    public long[] filterCounts() {
+        long[] counts = new long[2];
+        for (SegmentedIndex shard : shards) {
+            FilteredSegment.Stats stats = shard.getFilterStats();
+            if (stats != null) {
+                counts[0] += stats.getRejected();
+                counts[1] += stats.getFalsePositives();
+            }
+        }
+        return counts;
+    }
+
+    public void close() {
+        for (SegmentedIndex shard : shards) {
+            shard.close();
+        }
+    }
+}
@@ -0,0 +1,30 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// In-memory copy of the songs table keyed by song id, so that match results are
+// resolved without a database round trip. Loaded in bulk at startup and updated
+// as songs are added; safe to read while a song is being added.
+public class SongCatalog {
+    private final Map<Integer, SongInfo> songs = new ConcurrentHashMap<>();
+
+    // Replaces the catalogue with every song in the database
+    public void load(DatabaseManager dbManager) {
+        songs.clear();
+        for (SongInfo song : dbManager.loadSongs()) {
+            songs.put(song.getId(), song);
+        }
+    }
+
+    public void put(SongInfo song) {
+        songs.put(song.getId(), song);
+    }
+
+    // The song with this id, or null if it is not in the catalogue
+    public SongInfo get(int id) {
+        return songs.get(id);
+    }
+
+    public int size() {
+        return songs.size();
+    }
+}
@@ -0,0 +1,36 @@
+// Catalogue entry of a song, as stored in the songs table.
+public class SongInfo {
+    private final int id;
+    private final String name;
+    private final String path;
+    // Length of the fingerprinted audio in milliseconds, or 0 if unknown
+    private final long durationMs;
+
+    public SongInfo(int id, String name, String path, long durationMs) {
+        this.id = id;
+        this.name = name;
+        this.path = path;
+        this.durationMs = durationMs;
+    }
+
+    public int getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getPath() {
+        return path;
+    }
+
+    public long getDurationMs() {
+        return durationMs;
+    }
+
+    @Override
+    public String toString() {
+        return name;
+    }
+}
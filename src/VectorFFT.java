@@ -0,0 +1,81 @@
+import jdk.incubator.vector.DoubleVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+// SIMD versions of the FFT butterflies and the peak search, built on the
+// incubating Vector API. Only reached through FFT, which checks that the
+// jdk.incubator.vector module is present before calling in here.
+final class VectorFFT {
+    private static final VectorSpecies<Double> SPECIES = DoubleVector.SPECIES_PREFERRED;
+
+    private VectorFFT() {
+    }
+
+    static int lanes() {
+        return SPECIES.length();
+    }
+
+    // Same butterflies as FFT.butterflies, with twiddles read from the contiguous
+    // per-stage tables. Multiplies and adds are kept separate (no FMA) so every
+    // lane rounds exactly like the scalar code.
+    static void butterflies(double[] re, double[] im, double[] stageCos, double[] stageSin,
+                            int start, int half, int from, int to) {
+        int k = from;
+        int upper = from + SPECIES.loopBound(to - from);
+        for (; k < upper; k += SPECIES.length()) {
+            int a = start + k;
+            int b = a + half;
+            DoubleVector wr = DoubleVector.fromArray(SPECIES, stageCos, half + k);
+            DoubleVector wi = DoubleVector.fromArray(SPECIES, stageSin, half + k);
+            DoubleVector ar = DoubleVector.fromArray(SPECIES, re, a);
+            DoubleVector ai = DoubleVector.fromArray(SPECIES, im, a);
+            DoubleVector br = DoubleVector.fromArray(SPECIES, re, b);
+            DoubleVector bi = DoubleVector.fromArray(SPECIES, im, b);
+
+            DoubleVector tr = wr.mul(br).sub(wi.mul(bi));
+            DoubleVector ti = wr.mul(bi).add(wi.mul(br));
+            ar.sub(tr).intoArray(re, b);
+            ai.sub(ti).intoArray(im, b);
+            ar.add(tr).intoArray(re, a);
+            ai.add(ti).intoArray(im, a);
+        }
+        for (; k < to; k++) {
+            double wr = stageCos[half + k];
+            double wi = stageSin[half + k];
+            int a = start + k;
+            int b = a + half;
+            double tr = wr * re[b] - wi * im[b];
+            double ti = wr * im[b] + wi * re[b];
+            re[b] = re[a] - tr;
+            im[b] = im[a] - ti;
+            re[a] = re[a] + tr;
+            im[a] = im[a] + ti;
+        }
+    }
+
+    // Same result as the scalar FFT.peakBin: first find the largest squared
+    // magnitude across lanes, then the lowest bin that reaches it.
+    static int peakBin(double[] re, double[] im, int from, int to) {
+        int upper = from + SPECIES.loopBound(to - from);
+        DoubleVector max = DoubleVector.zero(SPECIES);
+        int i = from;
+        for (; i < upper; i += SPECIES.length()) {
+            DoubleVector r = DoubleVector.fromArray(SPECIES, re, i);
+            DoubleVector m = DoubleVector.fromArray(SPECIES, im, i);
+            max = max.max(r.mul(r).add(m.mul(m)));
+        }
+        double maxPower = max.reduceLanes(VectorOperators.MAX);
+        for (; i < to; i++) {
+            maxPower = Math.max(maxPower, re[i] * re[i] + im[i] * im[i]);
+        }
+        if (maxPower <= 0) {
+            return -1;
+        }
+        for (int j = from; j < to; j++) {
+            if (re[j] * re[j] + im[j] * im[j] == maxPower) {
+                return j;
+            }
+        }
+        return -1;
+    }
+}
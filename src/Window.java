@@ -0,0 +1,33 @@
+import java.util.concurrent.ConcurrentHashMap;
+
+// Window functions applied to each STFT frame before the FFT.
+public enum Window {
+    RECTANGULAR,
+    HANN,
+    HAMMING;
+
+    // Precomputed coefficients, keyed by frame length
+    private final ConcurrentHashMap<Integer, double[]> tables = new ConcurrentHashMap<>();
+
+    /**
+     * Returns the window coefficients for a frame of n samples, computed once per length.
+     * The rectangular window returns null, meaning the samples are used unchanged.
+     */
+    public double[] table(int n) {
+        if (this == RECTANGULAR) {
+            return null;
+        }
+        return tables.computeIfAbsent(n, this::compute);
+    }
+
+    private double[] compute(int n) {
+        double[] w = new double[n];
+        double a0 = this == HANN ? 0.5 : 0.54;
+        double a1 = 1 - a0;
+        for (int i = 0; i < n; i++) {
+            // Periodic form, so overlapping frames at hop n/2 (Hann) add up evenly
+            w[i] = a0 - a1 * Math.cos(2 * Math.PI * i / n);
+        }
+        return w;
+    }
+}
@@ -0,0 +1,67 @@
+import java.util.Random;
+
+// Decode cost of CompressedSegment compared with CsrSegment: both are built from
+// the same generated catalogue, and every posting list is walked with forEachAt.
+// Reports nanoseconds per posting for each backend, after a few warm-up passes.
+//
+// Run from the project root after compiling src/ and test/ into out/:
+//   java -cp out CompressedSegmentBenchmark [postings] [songs]
+public class CompressedSegmentBenchmark {
+    private static final int WARMUP_PASSES = 5;
+    private static final int PASSES = 10;
+    // Distinct hashes, so lists average postings / 2^20 entries
+    private static final int HASHES = 1 << 20;
+    // Length of a song in STFT frames
+    private static final int SONG_FRAMES = 30_000;
+
+    private static long checksum;
+
+    public static void main(String[] args) {
+        int postings = args.length > 0 ? Integer.parseInt(args[0]) : 4_000_000;
+        int songs = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+
+        Random random = new Random(42);
+        HashIndex catalogue = new HashIndex();
+        for (int i = 0; i < postings; i++) {
+            catalogue.add(random.nextInt(HASHES), 1 + random.nextInt(songs), random.nextInt(SONG_FRAMES));
+        }
+        IndexSegment csr = CsrSegment.merge(CsrSegment.EMPTY, catalogue);
+        IndexSegment compressed = CompressedSegment.FACTORY.merge(CsrSegment.EMPTY, catalogue);
+        System.out.println(postings + " postings of " + songs + " songs in " + csr.size() + " lists");
+
+        double csrNanos = 0;
+        double compressedNanos = 0;
+        long csrChecksum = 0;
+        long compressedChecksum = 0;
+        for (int pass = 0; pass < WARMUP_PASSES + PASSES; pass++) {
+            long start = System.nanoTime();
+            csrChecksum = walk(csr);
+            long middle = System.nanoTime();
+            compressedChecksum = walk(compressed);
+            long end = System.nanoTime();
+            if (pass >= WARMUP_PASSES) {
+                csrNanos += middle - start;
+                compressedNanos += end - middle;
+            }
+        }
+        if (csrChecksum != compressedChecksum) {
+            throw new IllegalStateException("Backends decoded different postings");
+        }
+
+        double csrPerPosting = csrNanos / PASSES / postings;
+        double compressedPerPosting = compressedNanos / PASSES / postings;
+        System.out.printf("CsrSegment:        %.1f ns/posting%n", csrPerPosting);
+        System.out.printf("CompressedSegment: %.1f ns/posting (%.2fx)%n",
+                compressedPerPosting, compressedPerPosting / csrPerPosting);
+    }
+
+    // Visits every posting of the segment; the sum is order independent and keeps the JIT honest
+    private static long walk(IndexSegment segment) {
+        checksum = 0;
+        PostingVisitor visitor = (songId, time) -> checksum += songId * 31L + time;
+        for (int i = 0; i < segment.size(); i++) {
+            segment.forEachAt(i, visitor);
+        }
+        return checksum;
+    }
+}
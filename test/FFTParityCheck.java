@@ -0,0 +1,207 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+// Parity check of the FFT engine: FFT.fft, FFT.realFft and the band-limited
+// realFft are compared with the original recursive Complex[] transform, and
+// FFT.peakBin with a plain scalar search, on random input. When the SIMD kernels
+// are active (FFT.VECTOR_LANES > 0) the check runs itself again with
+// -Dsaudentify.vector=false and requires bit-identical output from both paths.
+//
+// Run from the project root after compiling src/ and test/ into out/:
+//   java --add-modules jdk.incubator.vector -cp out FFTParityCheck
+// Exits with status 1 if any check fails.
+public class FFTParityCheck {
+    // Largest difference allowed from the recursive transform, for inputs in [-1, 1)
+    private static final double TOLERANCE = 1e-9;
+    private static final int ROUNDS = 20;
+
+    private static int failures;
+    // Raw bits of every computed value, to compare the vector and scalar runs
+    private static long digest = 17;
+
+    public static void main(String[] args) throws Exception {
+        Random random = new Random(42);
+        for (int n = 2; n <= 4096; n <<= 1) {
+            for (int round = 0; round < ROUNDS; round++) {
+                checkComplexFft(random, n);
+                checkRealFft(random, n);
+                checkBandFft(random, n);
+            }
+        }
+        for (int round = 0; round < 1000; round++) {
+            checkPeakBin(random);
+        }
+
+        String mode = FFT.VECTOR_LANES > 0 ? "vector (" + FFT.VECTOR_LANES + " lanes)" : "scalar";
+        System.out.println("FFT parity, " + mode + ": " + failures + " failures, digest " + Long.toHexString(digest));
+        if (FFT.VECTOR_LANES > 0 && args.length == 0) {
+            String scalarDigest = runScalar();
+            if (!Long.toHexString(digest).equals(scalarDigest)) {
+                fail("vector digest " + Long.toHexString(digest) + " differs from scalar digest " + scalarDigest);
+            }
+        }
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void checkComplexFft(Random random, int n) {
+        double[] re = randomSamples(random, n);
+        double[] im = randomSamples(random, n);
+        Complex[] expected = reference(toComplex(re, im));
+        FFT.fft(re, im);
+        for (int k = 0; k < n; k++) {
+            compare("fft n=" + n + " bin " + k, expected[k], re[k], im[k]);
+        }
+    }
+
+    private static void checkRealFft(Random random, int n) {
+        double[] x = randomSamples(random, n);
+        Complex[] expected = reference(toComplex(x, new double[n]));
+        double[] re = new double[n / 2 + 1];
+        double[] im = new double[n / 2 + 1];
+        FFT.realFft(x, re, im);
+        for (int k = 0; k <= n / 2; k++) {
+            compare("realFft n=" + n + " bin " + k, expected[k], re[k], im[k]);
+        }
+    }
+
+    // The band-limited transform must reproduce the full one exactly inside the band
+    private static void checkBandFft(Random random, int n) {
+        double[] x = randomSamples(random, n);
+        int from = random.nextInt(n / 2 + 1);
+        int to = from + 1 + random.nextInt(n / 2 + 1 - from);
+        double[] re = new double[n / 2 + 1];
+        double[] im = new double[n / 2 + 1];
+        FFT.realFft(x, re, im);
+        double[] bandRe = new double[n / 2 + 1];
+        double[] bandIm = new double[n / 2 + 1];
+        FFT.realFft(x, bandRe, bandIm, FFT.bandPlan(n, from, to));
+        for (int k = from; k < to; k++) {
+            if (Double.doubleToRawLongBits(re[k]) != Double.doubleToRawLongBits(bandRe[k])
+                    || Double.doubleToRawLongBits(im[k]) != Double.doubleToRawLongBits(bandIm[k])) {
+                fail("band " + from + ".." + to + " n=" + n + " bin " + k + " differs from realFft");
+            }
+            record(bandRe[k]);
+            record(bandIm[k]);
+        }
+    }
+
+    // Includes ties and all-zero ranges, which must go to the lowest bin and -1
+    private static void checkPeakBin(Random random) {
+        int length = 1 + random.nextInt(300);
+        double[] re = new double[length];
+        double[] im = new double[length];
+        for (int i = 0; i < length; i++) {
+            int kind = random.nextInt(4);
+            re[i] = kind == 0 ? 0 : kind == 1 ? 1 : random.nextDouble() * 2 - 1;
+            im[i] = kind == 0 ? 0 : kind == 1 ? 0 : random.nextDouble() * 2 - 1;
+        }
+        int from = random.nextInt(length);
+        int to = from + random.nextInt(length - from + 1);
+        int peak = -1;
+        double maxPower = 0;
+        for (int i = from; i < to; i++) {
+            double power = re[i] * re[i] + im[i] * im[i];
+            if (power > maxPower) {
+                maxPower = power;
+                peak = i;
+            }
+        }
+        int actual = FFT.peakBin(re, im, from, to);
+        if (actual != peak) {
+            fail("peakBin " + from + ".." + to + " returned " + actual + ", expected " + peak);
+        }
+        digest = 31 * digest + actual;
+    }
+
+    private static void compare(String what, Complex expected, double re, double im) {
+        if (Math.abs(expected.re() - re) > TOLERANCE || Math.abs(expected.im() - im) > TOLERANCE) {
+            fail(what + ": " + re + " + " + im + "i, expected " + expected);
+        }
+        record(re);
+        record(im);
+    }
+
+    private static void record(double value) {
+        digest = 31 * digest + Double.doubleToRawLongBits(value);
+    }
+
+    private static void fail(String message) {
+        failures++;
+        if (failures <= 20) {
+            System.out.println("FAIL " + message);
+        }
+    }
+
+    // Runs this check in a new JVM with the SIMD kernels disabled and returns its digest
+    private static String runScalar() throws Exception {
+        List<String> command = new ArrayList<>();
+        command.add(System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        command.addAll(ManagementFactory.getRuntimeMXBean().getInputArguments());
+        command.add("-Dsaudentify.vector=false");
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.add(FFTParityCheck.class.getName());
+        command.add("scalar");
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String digestLine = null;
+        try (BufferedReader in = new BufferedReader(new InputStreamReader(process.getInputStream()))) {
+            String line;
+            while ((line = in.readLine()) != null) {
+                System.out.println(line);
+                if (line.startsWith("FFT parity")) {
+                    digestLine = line;
+                }
+            }
+        }
+        if (process.waitFor() != 0 || digestLine == null) {
+            fail("scalar run failed");
+            return "";
+        }
+        return digestLine.substring(digestLine.lastIndexOf(' ') + 1);
+    }
+
+    private static double[] randomSamples(Random random, int n) {
+        double[] x = new double[n];
+        for (int i = 0; i < n; i++) {
+            x[i] = random.nextDouble() * 2 - 1;
+        }
+        return x;
+    }
+
+    private static Complex[] toComplex(double[] re, double[] im) {
+        Complex[] x = new Complex[re.length];
+        for (int i = 0; i < re.length; i++) {
+            x[i] = new Complex(re[i], im[i]);
+        }
+        return x;
+    }
+
+    // The original recursive radix-2 transform
+    private static Complex[] reference(Complex[] x) {
+        int n = x.length;
+        if (n == 1) return new Complex[]{x[0]};
+        Complex[] even = new Complex[n / 2];
+        Complex[] odd = new Complex[n / 2];
+        for (int k = 0; k < n / 2; k++) {
+            even[k] = x[2 * k];
+            odd[k] = x[2 * k + 1];
+        }
+        Complex[] q = reference(even);
+        Complex[] r = reference(odd);
+        Complex[] y = new Complex[n];
+        for (int k = 0; k < n / 2; k++) {
+            double kth = -2 * k * Math.PI / n;
+            Complex wk = new Complex(Math.cos(kth), Math.sin(kth));
+            y[k] = q[k].plus(wk.times(r[k]));
+            y[k + n / 2] = q[k].minus(wk.times(r[k]));
+        }
+        return y;
+    }
+}